@@ -0,0 +1,214 @@
+package com.sllx.fileupload.core;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>多个请求共享的读取带宽限制
+ *
+ * <p>全局与每个请求各有一个令牌桶,以GCRA(理论到达时间)的形式实现: 每读取n个字节,桶的理论到达时间向后推迟
+ * n个字节所需的时间,超出允许的突发量后读取线程休眠至理论到达时间.全局桶只是一个 {@link AtomicLong},
+ * 每次读取只有一次CAS,没有锁.
+ *
+ * <p>每个请求的速度上限为全局速度按当前活跃请求数平分的份额,同时不超过单个请求的上限,
+ * 因此少数大上传不能占满全部带宽.声明长度不超过 {@link #getExemptBelow()} 的小请求不受限制,也不计入活跃请求数.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * 每次读取最多请求约该时长可以读取的字节数,使休眠均匀分布
+     */
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * 每次读取至少允许的字节数
+     */
+    private static final int MIN_CHUNK = 1024;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 全局速度(字节/秒)
+     */
+    private final long bytesPerSecond;
+
+    /**
+     * 单个请求的速度上限(字节/秒),0表示只受份额限制
+     */
+    private final long perRequestBytesPerSecond;
+
+    /**
+     * 声明长度不超过该值的请求不受限制
+     */
+    private final long exemptBelow;
+
+    /**
+     * 允许的突发量对应的时长
+     */
+    private final long burstNanos;
+
+    /**
+     * 全局桶的理论到达时间
+     */
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    /**
+     * 当前受限制的请求数
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * @param bytesPerSecond           全局速度(字节/秒)
+     * @param perRequestBytesPerSecond 单个请求的速度上限,0表示只受份额限制
+     * @param exemptBelow              声明长度不超过该值的请求不受限制
+     */
+    public BandwidthLimiter(long bytesPerSecond, long perRequestBytesPerSecond, long exemptBelow) {
+        this(bytesPerSecond, perRequestBytesPerSecond, exemptBelow, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param bytesPerSecond           全局速度(字节/秒)
+     * @param perRequestBytesPerSecond 单个请求的速度上限,0表示只受份额限制
+     * @param exemptBelow              声明长度不超过该值的请求不受限制
+     * @param burst                    允许的突发量,以按当前速度读取的时长表示
+     * @param unit                     时间单位
+     */
+    public BandwidthLimiter(long bytesPerSecond, long perRequestBytesPerSecond, long exemptBelow,
+                            long burst, TimeUnit unit) {
+        if (bytesPerSecond <= 0 || perRequestBytesPerSecond < 0) {
+            throw new IllegalArgumentException(String.format("Invalid rates %s/%s",
+                    Long.valueOf(bytesPerSecond), Long.valueOf(perRequestBytesPerSecond)));
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.perRequestBytesPerSecond = perRequestBytesPerSecond;
+        this.exemptBelow = exemptBelow;
+        this.burstNanos = unit.toNanos(burst);
+    }
+
+    /**
+     * 开始一个请求的读取
+     *
+     * @param contentLength 请求声明的长度,未知时为-1
+     * @return 该请求的限速器,请求不受限制时为null
+     */
+    Shaper open(long contentLength) {
+        if (contentLength >= 0 && contentLength <= exemptBelow) {
+            return null;
+        }
+        active.incrementAndGet();
+        return new Shaper();
+    }
+
+    /**
+     * 从全局桶中取得 <code>bytes</code> 个字节
+     *
+     * @return 需要休眠的纳秒数
+     */
+    private long acquireGlobal(int bytes, long now) {
+        long cost = costOf(bytes, bytesPerSecond);
+        for (;;) {
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + cost;
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return next - now - burstNanos;
+            }
+        }
+    }
+
+    private static long costOf(long bytes, long rate) {
+        return bytes * NANOS_PER_SECOND / rate;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getPerRequestBytesPerSecond() {
+        return perRequestBytesPerSecond;
+    }
+
+    public long getExemptBelow() {
+        return exemptBelow;
+    }
+
+    /**
+     * @return 当前受限制的请求数
+     */
+    public int getActiveRequests() {
+        return active.get();
+    }
+
+    /**
+     * 单个请求的限速器,只被解析线程使用
+     */
+    class Shaper {
+
+        /**
+         * 该请求自己的桶的理论到达时间
+         */
+        private long theoreticalArrival = System.nanoTime();
+
+        private boolean closed;
+
+        /**
+         * @return 该请求当前的速度上限
+         */
+        private long rate() {
+            long share = bytesPerSecond / Math.max(1, active.get());
+            if (perRequestBytesPerSecond > 0) {
+                share = Math.min(share, perRequestBytesPerSecond);
+            }
+            return Math.max(1, share);
+        }
+
+        /**
+         * @param len 希望读取的字节数
+         * @return 本次允许读取的字节数
+         */
+        int limit(int len) {
+            long chunk = Math.max(MIN_CHUNK, rate() * SLICE_NANOS / NANOS_PER_SECOND);
+            return (int) Math.min(len, chunk);
+        }
+
+        /**
+         * 读取了 <code>bytes</code> 个字节后调用,超出份额或全局速度时休眠
+         *
+         * @throws InterruptedIOException 休眠被中断
+         */
+        void consume(int bytes) throws InterruptedIOException {
+            long now = System.nanoTime();
+            theoreticalArrival = Math.max(theoreticalArrival, now) + costOf(bytes, rate());
+            long wait = theoreticalArrival - now - burstNanos;
+            if (wait > 0) {
+                sleep(wait);
+                now = System.nanoTime();
+            }
+            //先等待自己的份额再从全局桶中取得,避免为休眠中的请求预留全局带宽
+            sleep(acquireGlobal(bytes, now));
+        }
+
+        private void sleep(long nanos) throws InterruptedIOException {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling the upload");
+            }
+        }
+
+        /**
+         * 请求结束,不再计入活跃请求数
+         */
+        void close() {
+            if (!closed) {
+                closed = true;
+                active.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.sllx.fileupload.core;
+
+/**
+ * 内存预算耗尽且策略不允许写入磁盘时抛出
+ *
+ * @see MemoryBudget
+ */
+public class BudgetExceededException extends UploadException {
+
+    public BudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,22 @@
+package com.sllx.fileupload.core;
+
+/**
+ * {@link MemoryBudget} 耗尽时内存中的条目如何处理
+ */
+public enum BudgetPolicy {
+
+    /**
+     * 将条目已有的内容及剩余部分写入临时文件
+     */
+    SPILL,
+
+    /**
+     * 等待其他请求释放预算,超时后抛出 {@link BudgetExceededException}
+     */
+    BLOCK,
+
+    /**
+     * 立即抛出 {@link BudgetExceededException}
+     */
+    REJECT
+}
@@ -0,0 +1,125 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Charsets;
+import com.sllx.fileupload.util.Streams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * <p>以 {@link ByteBuffer} 切片表示的条目,不持有任何副本
+ *
+ * <p>切片引用的是整个底层数组或映射: 整体读入时只要还有一个条目(或从它取得的缓冲)可达,
+ * 整个请求数组都不会被回收.需要长期保留的内容应当复制出来,然后删除条目
+ */
+class BufferPart implements Part {
+
+    private final String fieldName;
+
+    private final String fileName;
+
+    /**
+     * 条目内容,position为0,limit为条目长度
+     */
+    private final ByteBuffer data;
+
+    private final Charset charset;
+
+    /**
+     * 与同一请求的其他切片条目共享的预算预留,没有时为null
+     */
+    private final MemoryBudget.Shared reservation;
+
+    private volatile boolean deleted;
+
+    /**
+     * 解码后的值,首次调用{@link #getValue()}时生成
+     */
+    private String value;
+
+    BufferPart(String fieldName, String fileName, ByteBuffer data, Charset charset,
+               MemoryBudget.Shared reservation) {
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.data = data;
+        this.charset = charset;
+        this.reservation = reservation;
+        if (reservation != null) {
+            reservation.retain();
+        }
+    }
+
+    @Override
+    public void write(File file) throws IOException {
+        write(file, Durability.NONE);
+    }
+
+    @Override
+    public void write(File file, Durability durability) throws IOException {
+        checkNotDeleted();
+        PartFiles.write(file, data.duplicate(), durability);
+    }
+
+    @Override
+    public String getField() {
+        return fieldName;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public boolean isFormField() {
+        return fileName == null;
+    }
+
+    @Override
+    public String getValue() {
+        checkNotDeleted();
+        if (value == null) {
+            value = Charsets.decode(data, charset);
+        }
+        return value;
+    }
+
+    /**
+     * @return 与底层切片共享数据的视图,底层为 {@link java.nio.MappedByteBuffer} 时返回值也是
+     */
+    @Override
+    public ByteBuffer getByteBuffer() {
+        checkNotDeleted();
+        return data.duplicate();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        checkNotDeleted();
+        return Streams.newInputStream(data);
+    }
+
+    /**
+     * 同一请求的所有切片条目都被删除后归还整个请求数组的预算.删除后不能再读取内容,
+     * 之前取得的缓冲与流仍引用底层数组,但不再计入预算
+     */
+    @Override
+    public synchronized void delete() {
+        if (deleted) {
+            return;
+        }
+        deleted = true;
+        if (reservation != null) {
+            reservation.release();
+        }
+    }
+
+    private void checkNotDeleted() {
+        if (deleted) {
+            throw new IllegalStateException("the part has been deleted");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.sllx.fileupload.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>将 <code>multipart/byteranges</code> 响应中的每一段直接写入目标文件中对应的位置
+ *
+ * <p>每一段的body从解析缓冲以定位写入的方式写入 {@link FileChannel},不改变通道的position,也不在内存中保留副本.
+ * 定位写入可以并发进行,因此多个范围请求的响应可以在各自的线程中同时写入同一个通道,各自调用
+ * {@link #write(RequestContext, FileChannel)} 即可
+ */
+public class ByteRangeWriter {
+
+    private final int minBufferSize;
+
+    private final int maxBufferSize;
+
+    public ByteRangeWriter() {
+        this(MultipartStream.DEFAULT_BUFSIZE, MultipartStream.DEFAULT_MAX_BUFSIZE);
+    }
+
+    /**
+     * @param minBufferSize 最小解析缓冲大小
+     * @param maxBufferSize 最大解析缓冲大小
+     */
+    public ByteRangeWriter(int minBufferSize, int maxBufferSize) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException(String.format("Invalid buffer size bounds [%s, %s]",
+                    Integer.valueOf(minBufferSize), Integer.valueOf(maxBufferSize)));
+        }
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * 解析响应并写入所有段,写入完毕后不会关闭 <code>target</code>
+     *
+     * @param response <code>multipart/byteranges</code> 响应,例如 {@link RequestContext#of(java.io.InputStream, String, String, long)}
+     * @param target   目标文件,以可写方式打开
+     * @return 写入的段
+     * @throws UploadException 某一段没有 <code>Content-Range</code>,或body长度与之不符
+     * @throws IOException
+     */
+    public ContentRange[] write(RequestContext response, FileChannel target) throws IOException {
+        ItemIterator iter = new ItemIterator(response,
+                MultipartStream.bufferSizeFor(response.contentLength(), minBufferSize, maxBufferSize), maxBufferSize);
+        List<ContentRange> ranges = new ArrayList<ContentRange>();
+        while (iter.hasNext()) {
+            Item item = iter.next();
+            ContentRange range = ContentRange.of(item.getHeaders());
+            long written = item.transferTo(new PositionalChannel(target, range));
+            if (written != range.getLength()) {
+                throw new UploadException(String.format("Range %s has %s bytes of body", range,
+                        Long.valueOf(written)));
+            }
+            ranges.add(range);
+        }
+        return ranges.toArray(new ContentRange[ranges.size()]);
+    }
+
+    /**
+     * 在一段范围内定位写入 {@link FileChannel} 的通道,body超出范围时在写入之前失败,不会覆盖其他段
+     */
+    private static class PositionalChannel implements WritableByteChannel {
+
+        private final FileChannel target;
+
+        private final ContentRange range;
+
+        private long position;
+
+        PositionalChannel(FileChannel target, ContentRange range) {
+            this.target = target;
+            this.range = range;
+            this.position = range.getFirst();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (position + src.remaining() > range.getLast() + 1) {
+                throw new UploadException(String.format("Range %s has more than %s bytes of body", range,
+                        Long.valueOf(range.getLength())));
+            }
+            int n = target.write(src, position);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        /**
+         * 目标通道由调用者关闭
+         */
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.sllx.fileupload.core;
+
+import java.util.Locale;
+
+/**
+ * <p><code>Content-Range: bytes first-last/complete</code> 表示的一段内容
+ *
+ * <p>只支持 <code>bytes</code> 单位,完整长度未知(<code>*</code>)时为-1
+ */
+public class ContentRange {
+
+    private static final String CONTENT_RANGE = "Content-range";
+
+    private static final String BYTES = "bytes ";
+
+    private final long first;
+
+    private final long last;
+
+    private final long completeLength;
+
+    public ContentRange(long first, long last, long completeLength) {
+        if (first < 0 || last < first || (completeLength >= 0 && last >= completeLength)) {
+            throw new IllegalArgumentException(String.format("Invalid range %s-%s/%s",
+                    Long.valueOf(first), Long.valueOf(last), Long.valueOf(completeLength)));
+        }
+        this.first = first;
+        this.last = last;
+        this.completeLength = completeLength;
+    }
+
+    /**
+     * @param headers 条目的header
+     * @return 条目的 <code>Content-Range</code>
+     * @throws UploadException 没有 <code>Content-Range</code> 或格式错误
+     */
+    public static ContentRange of(HeaderContext headers) throws UploadException {
+        String value = headers.getHeader(CONTENT_RANGE);
+        if (value == null) {
+            throw new UploadException("Part has no Content-Range header");
+        }
+        return parse(value);
+    }
+
+    /**
+     * @param value <code>Content-Range</code> 的值
+     * @return 解析出的范围
+     * @throws UploadException 格式错误或单位不是 <code>bytes</code>
+     */
+    public static ContentRange parse(String value) throws UploadException {
+        String range = value.trim();
+        if (!range.toLowerCase(Locale.ENGLISH).startsWith(BYTES)) {
+            throw new UploadException("Unsupported Content-Range: " + value);
+        }
+        int dash = range.indexOf('-', BYTES.length());
+        int slash = range.indexOf('/', dash + 1);
+        if (dash == -1 || slash == -1) {
+            throw new UploadException("Malformed Content-Range: " + value);
+        }
+        try {
+            long first = Long.parseLong(range.substring(BYTES.length(), dash).trim());
+            long last = Long.parseLong(range.substring(dash + 1, slash).trim());
+            String complete = range.substring(slash + 1).trim();
+            return new ContentRange(first, last, complete.equals("*") ? -1 : Long.parseLong(complete));
+        } catch (IllegalArgumentException e) {
+            //NumberFormatException也是IllegalArgumentException
+            throw new UploadException("Malformed Content-Range: " + value, e);
+        }
+    }
+
+    /**
+     * @return 第一个字节的偏移量
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return 最后一个字节的偏移量(包含)
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @return 这一段的字节数
+     */
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return 完整内容的长度,未知时为-1
+     */
+    public long getCompleteLength() {
+        return completeLength;
+    }
+
+    @Override
+    public String toString() {
+        return BYTES + first + "-" + last + "/" + (completeLength < 0 ? "*" : Long.toString(completeLength));
+    }
+}
@@ -0,0 +1,318 @@
+package com.sllx.fileupload.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>按内容寻址的去重存储
+ *
+ * <p>文件在写入临时文件的同时计算SHA-256,之后以哈希值为名硬链接到 <code>root/ab/cd/abcd...</code>,
+ * 同一内容已存在时链接失败,临时文件直接被删除,因此相同的内容只保存一份.链接是原子的,并发写入相同内容时只有一个会成功,
+ * 文件系统不支持硬链接时退化为原子重命名,覆盖的也是相同的内容.
+ *
+ * <p>每个对象旁有一个 <code>.refs</code> 文件记录引用数,每次 {@link #store(InputStream)} 加一,
+ * {@link #release(String)} 减一.引用数为0的对象由 {@link #gc(long, TimeUnit)} 删除.
+ * 引用数的修改与回收由进程内的分段锁保护,多个进程共享同一目录时只有链接是安全的,回收应只在一个进程中进行.
+ */
+public class ContentStore {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final String REFS_SUFFIX = ".refs";
+
+    private static final String TMP_DIR = "tmp";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 分段锁的数量,必须是2的幂
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    private final File root;
+
+    /**
+     * 临时文件所在目录,与对象位于同一文件系统,以便链接或原子重命名
+     */
+    private final File tmp;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param root 存储的根目录,不存在时创建
+     * @throws IOException 无法创建目录
+     */
+    public ContentStore(File root) throws IOException {
+        this.root = root;
+        this.tmp = new File(root, TMP_DIR);
+        Files.createDirectories(tmp.toPath());
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 读取 <code>input</code> 直至结束并存储,内容已存在时只增加引用数
+     *
+     * @param input 内容,不会被关闭
+     * @return 对象的哈希值,路径与长度
+     * @throws IOException
+     */
+    public Entry store(InputStream input) throws IOException {
+        File temp = File.createTempFile("store_", ".tmp", tmp);
+        try {
+            MessageDigest digest = newDigest();
+            long size;
+            OutputStream out = new DigestOutputStream(new FileOutputStream(temp), digest);
+            try {
+                //条目的流直接从解析缓冲写出,不经过中间数组
+                size = input.transferTo(out);
+            } finally {
+                out.close();
+            }
+            String hash = toHex(digest.digest());
+            File target = fileOf(hash);
+            synchronized (lockOf(hash)) {
+                link(temp, target);
+                addReference(hash, 1);
+            }
+            return new Entry(hash, target, size);
+        } finally {
+            //链接成功或内容已存在时临时文件都不再需要,重命名后它已不存在
+            temp.delete();
+        }
+    }
+
+    /**
+     * 减少一个引用,引用数降为0时对象仍然保留,直至 {@link #gc(long, TimeUnit)}
+     *
+     * @param hash 对象的哈希值
+     * @throws IOException
+     */
+    public void release(String hash) throws IOException {
+        synchronized (lockOf(hash)) {
+            addReference(hash, -1);
+        }
+    }
+
+    /**
+     * @param hash 对象的哈希值
+     * @return 当前的引用数
+     * @throws IOException
+     */
+    public int getReferences(String hash) throws IOException {
+        synchronized (lockOf(hash)) {
+            return readReferences(refsOf(hash));
+        }
+    }
+
+    /**
+     * 删除所有引用数为0的对象,以及遗留的临时文件
+     *
+     * @param minAge 最后修改时间距今不足该时长的对象与临时文件不会被删除,用于保护其他进程正在写入的内容
+     * @param unit   时间单位
+     * @return 删除的对象数
+     * @throws IOException
+     */
+    public int gc(long minAge, TimeUnit unit) throws IOException {
+        long cutoff = System.currentTimeMillis() - unit.toMillis(minAge);
+        int removed = 0;
+        File[] shards = root.listFiles();
+        if (shards == null) {
+            return 0;
+        }
+        for (File shard : shards) {
+            if (shard.getName().equals(TMP_DIR)) {
+                deleteOlderThan(shard.listFiles(), cutoff);
+                continue;
+            }
+            File[] subShards = shard.listFiles();
+            if (subShards == null) {
+                continue;
+            }
+            for (File subShard : subShards) {
+                File[] objects = subShard.listFiles();
+                if (objects == null) {
+                    continue;
+                }
+                for (File object : objects) {
+                    String hash = object.getName();
+                    if (hash.endsWith(REFS_SUFFIX) || object.lastModified() >= cutoff) {
+                        continue;
+                    }
+                    synchronized (lockOf(hash)) {
+                        if (readReferences(refsOf(hash)) == 0 && object.delete()) {
+                            removed++;
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param hash 对象的哈希值
+     * @return 对象的路径,对象不一定存在
+     */
+    public File fileOf(String hash) {
+        if (hash.length() < 4) {
+            throw new IllegalArgumentException("Invalid hash: " + hash);
+        }
+        return new File(new File(new File(root, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+    /**
+     * 将临时文件链接为对象,对象已存在时什么都不做
+     */
+    private static void link(File temp, File target) throws IOException {
+        if (target.exists()) {
+            return;
+        }
+        Files.createDirectories(target.getParentFile().toPath());
+        try {
+            Files.createLink(target.toPath(), temp.toPath());
+        } catch (FileAlreadyExistsException e) {
+            //其他进程刚刚写入了相同的内容
+        } catch (UnsupportedOperationException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileSystemException e) {
+            //文件系统不支持硬链接
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * 修改引用数,新的引用数先写入临时文件再原子重命名,不会留下写了一半的文件
+     */
+    private void addReference(String hash, int delta) throws IOException {
+        File refs = refsOf(hash);
+        int count = Math.max(0, readReferences(refs) + delta);
+        if (count == 0) {
+            Files.deleteIfExists(refs.toPath());
+            return;
+        }
+        File temp = File.createTempFile("refs_", ".tmp", tmp);
+        try {
+            Files.write(temp.toPath(), Integer.toString(count).getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp.toPath(), refs.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static int readReferences(File refs) throws IOException {
+        try {
+            String text = new String(Files.readAllBytes(refs.toPath()), StandardCharsets.US_ASCII).trim();
+            return Integer.parseInt(text);
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted reference count: " + refs, e);
+        }
+    }
+
+    private File refsOf(String hash) {
+        File object = fileOf(hash);
+        return new File(object.getParentFile(), hash + REFS_SUFFIX);
+    }
+
+    private Object lockOf(String hash) {
+        return locks[hash.hashCode() & (LOCK_STRIPES - 1)];
+    }
+
+    private static void deleteOlderThan(File[] files, long cutoff) {
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            //每个Java平台都必须支持SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 写入文件的同时更新摘要,摘要与写入的是同一段字节,不再单独读取
+     */
+    private static class DigestOutputStream extends FilterOutputStream {
+
+        private final MessageDigest digest;
+
+        DigestOutputStream(OutputStream out, MessageDigest digest) {
+            super(out);
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            digest.update((byte) b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * 存储的对象
+     */
+    public static class Entry {
+
+        private final String hash;
+
+        private final File file;
+
+        private final long size;
+
+        Entry(String hash, File file, long size) {
+            this.hash = hash;
+            this.file = file;
+            this.size = size;
+        }
+
+        /**
+         * @return 内容的SHA-256,十六进制小写
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return 对象的路径,所有相同内容的上传都指向这里,不应修改
+         */
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
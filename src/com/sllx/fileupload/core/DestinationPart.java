@@ -0,0 +1,169 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 由 {@link DestinationResolver} 决定保存位置、解析时直接写入该文件的文件条目
+ */
+public class DestinationPart implements Part {
+
+    private final String fieldName;
+
+    private final String fileName;
+
+    private final Path path;
+
+    private final long size;
+
+    private final Charset charset;
+
+    /**
+     * 尚未重命名为 {@link #path} 的临时文件,解析成功后为null
+     */
+    private File pending;
+
+    private boolean deleted;
+
+    DestinationPart(String fieldName, String fileName, Path path, File pending, long size, Charset charset) {
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.path = path;
+        this.pending = pending;
+        this.size = size;
+        this.charset = charset;
+    }
+
+    /**
+     * 请求解析成功后将临时文件重命名为目标文件
+     */
+    void commit() throws IOException {
+        if (pending != null) {
+            PartFiles.rename(pending, path.toFile());
+            pending = null;
+        }
+    }
+
+    /**
+     * 解析失败时调用,只删除尚未重命名的临时文件,已重命名为目标文件时什么都不做
+     */
+    void discard() {
+        if (pending != null) {
+            delete();
+        }
+    }
+
+    /**
+     * @return 当前保存内容的文件,解析成功前为临时文件
+     */
+    private Path current() {
+        return pending != null ? pending.toPath() : path;
+    }
+
+    /**
+     * @return 条目写入的文件
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 复制到另一个文件,目标与 {@link #getPath()} 相同时什么都不做
+     */
+    @Override
+    public void write(File file) throws IOException {
+        write(file, Durability.NONE);
+    }
+
+    /**
+     * 复制到另一个文件,目标与 {@link #getPath()} 相同时什么都不做
+     */
+    @Override
+    public void write(File file, Durability durability) throws IOException {
+        checkNotDeleted();
+        if (Files.exists(file.toPath()) && Files.isSameFile(current(), file.toPath())) {
+            return;
+        }
+        PartFiles.copy(current().toFile(), file, durability);
+    }
+
+    @Override
+    public String getField() {
+        return fieldName;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public boolean isFormField() {
+        return false;
+    }
+
+    @Override
+    public String getValue() {
+        try {
+            return Charsets.decode(getByteBuffer(), charset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return 文件的只读映射
+     */
+    @Override
+    public ByteBuffer getByteBuffer() throws IOException {
+        checkNotDeleted();
+        FileChannel channel = FileChannel.open(current(), StandardOpenOption.READ);
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkNotDeleted();
+        return Files.newInputStream(current());
+    }
+
+    /**
+     * 删除写入的文件.解析失败时只有尚未重命名的临时文件被删除,需要保留文件时不要调用
+     */
+    @Override
+    public void delete() {
+        if (deleted) {
+            return;
+        }
+        deleted = true;
+        try {
+            Files.deleteIfExists(current());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkNotDeleted() {
+        if (deleted) {
+            throw new IllegalStateException("the part has been deleted");
+        }
+    }
+}
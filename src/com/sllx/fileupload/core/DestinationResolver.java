@@ -0,0 +1,22 @@
+package com.sllx.fileupload.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * 为文件条目决定保存位置,在读取条目的body之前调用
+ *
+ * <p>返回路径时body直接从解析缓冲写入该文件旁的临时文件,不在内存中保留副本,请求解析成功后重命名为该文件
+ */
+public interface DestinationResolver {
+
+    /**
+     * @param fieldName 字段名(form中的name值)
+     * @param fileName  客户端提供的文件名,未经检查,不应直接用作路径的一部分
+     * @param headers   条目的header
+     * @return 保存的文件,必须位于默认文件系统,已存在时在整个请求解析成功后才被替换;
+     *         返回null时按通常的方式解析该条目
+     * @throws IOException 无法决定保存位置,解析将失败
+     */
+    Path resolve(String fieldName, String fileName, HeaderContext headers) throws IOException;
+}
@@ -0,0 +1,25 @@
+package com.sllx.fileupload.core;
+
+/**
+ * {@link Part#write(java.io.File, Durability)} 写入完成时对持久性的保证
+ *
+ * <p>所有方式都先写入同一目录下的临时文件再原子重命名为目标文件,目标文件要么是旧的内容,要么是完整的新内容
+ */
+public enum Durability {
+
+    /**
+     * 不调用fsync,崩溃后目标文件可能是旧的内容或为空
+     */
+    NONE,
+
+    /**
+     * 重命名前对文件调用fsync,重命名后对目录调用fsync,返回时内容与文件名都已落盘
+     */
+    FSYNC,
+
+    /**
+     * 与 {@link #FSYNC} 的保证相同,各线程并行fsync自己的文件,之后并发的重命名被合并为一批:
+     * 由其中一个线程依次重命名整批文件,每个目录只fsync一次,其余线程等待这一批完成
+     */
+    GROUP_COMMIT
+}
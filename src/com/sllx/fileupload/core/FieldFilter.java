@@ -0,0 +1,15 @@
+package com.sllx.fileupload.core;
+
+/**
+ * 字段过滤器,决定哪些条目需要解析
+ *
+ * <p>未被接受的条目不会创建任何对象,其body只移动游标跳过,不发生复制
+ */
+public interface FieldFilter {
+
+    /**
+     * @param fieldName 字段名(form中的name值)
+     * @return 若返回false,该条目将被跳过
+     */
+    boolean accept(String fieldName);
+}
@@ -0,0 +1,86 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 直接从解析缓冲中复制得到的小型表单域,保存收到的原始字节,值在首次读取时解码
+ */
+class FieldPart implements Part {
+
+    private final String fieldName;
+
+    /**
+     * 收到的原始字节,不会被修改
+     */
+    private final byte[] bytes;
+
+    private final Charset charset;
+
+    /**
+     * 解码后的值,首次调用{@link #getValue()}时生成
+     */
+    private String value;
+
+    FieldPart(String fieldName, byte[] bytes, Charset charset) {
+        this.fieldName = fieldName;
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    @Override
+    public void write(File file) throws IOException {
+        write(file, Durability.NONE);
+    }
+
+    @Override
+    public void write(File file, Durability durability) throws IOException {
+        PartFiles.write(file, ByteBuffer.wrap(bytes), durability);
+    }
+
+    @Override
+    public String getField() {
+        return fieldName;
+    }
+
+    @Override
+    public String getFileName() {
+        return null;
+    }
+
+    @Override
+    public boolean isFormField() {
+        return true;
+    }
+
+    @Override
+    public String getValue() {
+        if (value == null) {
+            value = Charsets.decode(bytes, 0, bytes.length, charset);
+        }
+        return value;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * 值只保存在堆中,没有需要释放的资源
+     */
+    @Override
+    public void delete() {
+    }
+}
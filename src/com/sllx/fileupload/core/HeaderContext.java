@@ -2,10 +2,15 @@ package com.sllx.fileupload.core;
 
 import java.util.*;
 
-class HeaderContext {
+public class HeaderContext {
 
     private final Map<String, List<String>> headerNameToValueListMap = new LinkedHashMap<String, List<String>>();
 
+    /**
+     * 小写header名到首次出现时原始写法的映射,重新输出header时使用
+     */
+    private final Map<String, String> headerNameToOriginalNameMap = new HashMap<String, String>();
+
     public String getHeader(String name) {
         String nameLower = name.toLowerCase(Locale.ENGLISH);
         List<String> headerValueList = headerNameToValueListMap.get(nameLower);
@@ -34,8 +39,44 @@ class HeaderContext {
         if (null == headerValueList) {
             headerValueList = new ArrayList<String>();
             headerNameToValueListMap.put(nameLower, headerValueList);
+            headerNameToOriginalNameMap.put(nameLower, name);
         }
         headerValueList.add(value);
     }
 
+    /**
+     * 替换指定header的所有值
+     * @param name header名
+     * @param value 新的值
+     */
+    public synchronized void setHeader(String name, String value) {
+        removeHeader(name);
+        addHeader(name, value);
+    }
+
+    /**
+     * 移除指定header的所有值
+     * @param name header名
+     */
+    public synchronized void removeHeader(String name) {
+        String nameLower = name.toLowerCase(Locale.ENGLISH);
+        headerNameToValueListMap.remove(nameLower);
+        headerNameToOriginalNameMap.remove(nameLower);
+    }
+
+    /**
+     * 按原始写法将所有header序列化为 <code>header-part</code>,每行以CRLF结尾,不包含结尾的空行
+     * @return header-part字符串
+     */
+    synchronized String toHeaderPart() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : headerNameToValueListMap.entrySet()) {
+            String name = headerNameToOriginalNameMap.get(entry.getKey());
+            for (String value : entry.getValue()) {
+                sb.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
 }
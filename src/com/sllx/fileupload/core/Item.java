@@ -1,9 +1,35 @@
 package com.sllx.fileupload.core;
 
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
 
-interface Item {
+public interface Item {
     InputStream openStream() throws IOException;
+
+    /**
+     * <p>预读body中接下来的至多 <code>n</code> 个字节而不消费它们,用于在复制任何数据之前根据内容判断类型.
+     * 可以在 {@link #openStream()} 之前或之后调用,之后的读取仍从预读的第一个字节开始
+     *
+     * <p>预读的数据保存在解析缓冲中,能预读的字节数受缓冲大小的限制,条目较短时返回的字节数也会少于 <code>n</code>
+     *
+     * @param n 需要的字节数
+     * @return 预读到的字节
+     * @throws IOException
+     */
+    byte[] peek(int n) throws IOException;
+
+    /**
+     * <p>将body中尚未读取的部分直接从解析缓冲写入 <code>target</code>,不经过中间数组.
+     * 写入 {@link java.nio.channels.FileChannel} 时,解析缓冲就是写入文件的唯一一份副本
+     *
+     * <p>只能在取得下一个条目之前调用,之后不能再从 {@link #openStream()} 读到数据
+     *
+     * @param target 写入的目标,不会被关闭
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    long transferTo(WritableByteChannel target) throws IOException;
+
     String getContentType();
     String getFileName();
     String getFieldName();
@@ -5,17 +5,26 @@ package com.sllx.fileupload.core;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Locale;
 import java.util.NoSuchElementException;
 
-class ItemIterator{
+/**
+ * 逐个返回请求中的条目,条目的body只能在调用 {@link #next()} 取得下一个条目之前读取
+ */
+public class ItemIterator{
     private static final String CONTENT_TYPE = "Content-type";
     private static final String MULTIPART = "multipart/";
     private static final String MULTIPART_FORM_DATA = "multipart/form-data";
     private static final String MULTIPART_MIXED = "multipart/mixed";
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges";
     private static final String CONTENT_DISPOSITION = "Content-disposition";
     private static final String FORM_DATA = "form-data";
     private static final String ATTACHMENT = "attachment";
+    private static final String BOUNDARY = "boundary";
+    private static final String NAME = "name";
+    private static final String FILENAME = "filename";
 
     /**
      * 多个Stream段的持有者，可以从其中获取一段一段的Stream
@@ -30,7 +39,12 @@ class ItemIterator{
     /**
      * 分界线
      */
-    private final byte[] boundary;
+    private byte[] boundary;
+
+    /**
+     * 是否为 <code>multipart/byteranges</code> 响应,此时每个条目都是一段内容,没有字段名
+     */
+    private boolean byteRanges;
 
     /**
      * 当前条目
@@ -57,23 +71,126 @@ class ItemIterator{
      */
     private boolean eof;
 
+    /**
+     * 当前条目的 <code>header-part</code> 在输入流中的偏移量
+     */
+    private long headerOffset;
+
+    /**
+     * 当前条目的 <code>body-data</code> 在输入流中的偏移量
+     */
+    private long bodyOffset;
+
+    /**
+     * 字段过滤器,为null时接受所有条目
+     */
+    private FieldFilter fieldFilter;
+
     ItemIterator(RequestContext ctx) throws IOException{
-        String contentType = ctx.getContentType();
+        this(ctx, MultipartStream.DEFAULT_BUFSIZE, MultipartStream.DEFAULT_BUFSIZE);
+    }
+
+    /**
+     * @param ctx        请求
+     * @param bufSize    初始缓冲大小
+     * @param maxBufSize 缓冲大小上限
+     * @throws IOException
+     */
+    ItemIterator(RequestContext ctx, int bufSize, int maxBufSize) throws IOException{
+        this(ctx.getContentType(), ctx.getInputStream(), ctx.getCharacterEncoding(), bufSize, maxBufSize);
+        multi.setChannel(ctx.getChannel());
+    }
+
+    /**
+     * @param contentType    请求的contentType,包含boundary
+     * @param input          请求体
+     * @param headerEncoding 读取header时使用的编码
+     * @throws IOException
+     */
+    ItemIterator(String contentType, InputStream input, String headerEncoding) throws IOException{
+        this(contentType, input, headerEncoding, MultipartStream.DEFAULT_BUFSIZE, MultipartStream.DEFAULT_BUFSIZE);
+    }
+
+    /**
+     * @param contentType    请求的contentType,包含boundary
+     * @param input          请求体
+     * @param headerEncoding 读取header时使用的编码
+     * @param bufSize        初始缓冲大小
+     * @param maxBufSize     缓冲大小上限
+     * @throws IOException
+     */
+    ItemIterator(String contentType, InputStream input, String headerEncoding,
+                 int bufSize, int maxBufSize) throws IOException{
+        boundary = getBoundary(checkContentType(contentType));
+        byteRanges = isByteRanges(contentType);
+        notifier = new MultipartStream.ProgressNotifier();
+        multi = new MultipartStream(input, boundary, bufSize, maxBufSize, notifier);
+        multi.setHeaderEncoding(headerEncoding);
+        //第一个条目在首次调用hasNext()时才查找,以便在此之前完成设置
+        skipPreamble = true;
+    }
+
+    /**
+     * 丢弃所有状态,复用同一个实例解析另一个请求
+     *
+     * @see #ItemIterator(String, InputStream, String, int, int)
+     */
+    void reset(String contentType, InputStream input, String headerEncoding,
+               int bufSize, int maxBufSize) {
+        boundary = getBoundary(checkContentType(contentType));
+        byteRanges = isByteRanges(contentType);
+        multi.reset(input, boundary, bufSize, maxBufSize);
+        multi.setHeaderEncoding(headerEncoding);
+        currentItem = null;
+        currentFieldName = null;
+        itemValid = false;
+        eof = false;
+        headerOffset = 0;
+        bodyOffset = 0;
+        fieldFilter = null;
+        skipPreamble = true;
+    }
+
+    /**
+     * @param channel 与输入流对应的阻塞通道,为null时从输入流读取
+     * @see MultipartStream#setChannel(ReadableByteChannel)
+     */
+    void setChannel(ReadableByteChannel channel) {
+        multi.setChannel(channel);
+    }
+
+    /**
+     * 解析结束后放弃对请求与条目的引用,以便实例被缓存时不会使它们无法回收
+     *
+     * @param retainBufSize 缓存期间保留的最大缓冲大小
+     */
+    void release(int retainBufSize) {
+        multi.release(retainBufSize);
+        currentItem = null;
+        fieldFilter = null;
+    }
+
+    /**
+     * @param recycleStreams 是否复用已关闭的条目流,只有调用者不会在取得下一个条目后继续使用旧条目时才能打开
+     */
+    void setRecycleStreams(boolean recycleStreams) {
+        multi.setRecycleStreams(recycleStreams);
+    }
+
+    private static String checkContentType(String contentType) {
         if ((null == contentType) || (!contentType.toLowerCase(Locale.ENGLISH).startsWith(MULTIPART))) {
             throw new RuntimeException(
                     String.format("the request doesn't contain a %s or %s stream, content type header is %s",
                             MULTIPART_FORM_DATA, MULTIPART_MIXED, contentType));
         }
-        InputStream input = ctx.getInputStream();
-        boundary = getBoundary(contentType);
-        notifier = new MultipartStream.ProgressNotifier();
-        multi = new MultipartStream(input, boundary, notifier);
-        multi.setHeaderEncoding(ctx.getCharacterEncoding());
-        skipPreamble = true;
-        findNextItem();
+        return contentType;
     }
 
 
+    private static boolean isByteRanges(String contentType) {
+        return contentType.toLowerCase(Locale.ENGLISH).startsWith(MULTIPART_BYTERANGES);
+    }
+
     /**
      * @return 是否找到下一个条目
      */
@@ -106,13 +223,31 @@ class ItemIterator{
                 continue;
             }
             //如果存在下一条目，解析itme的Headers
+            ParseEvents.Header headerEvent = new ParseEvents.Header();
+            headerEvent.begin();
+            headerOffset = multi.position();
             HeaderContext headers = getParsedHeaders(multi.readHeaders());
+            bodyOffset = multi.position();
+            notifier.noteHeaderBytes(bodyOffset - headerOffset);
+            if (headerEvent.shouldCommit()) {
+                headerEvent.partIndex = notifier.getItems();
+                headerEvent.headerBytes = bodyOffset - headerOffset;
+                headerEvent.commit();
+            }
+            if (byteRanges) {
+                //byteranges的条目没有Content-Disposition,由Content-Range定位,字段过滤不适用
+                currentItem = new ItemImpl(null, null, headers.getHeader(CONTENT_TYPE), false);
+                currentItem.setHeaders(headers);
+                notifier.noteItem();
+                itemValid = true;
+                return true;
+            }
             //当前条目字段名不存在,混合类型时使用(多个文件使用同一字段)
             if (currentFieldName == null) {
                 //字段名
                 String fieldName = getFieldName(headers);
-                //字段名为空,当前item将被舍弃
-                if (fieldName != null) {
+                //字段名为空或未被过滤器接受,当前item将被舍弃
+                if (fieldName != null && (fieldFilter == null || fieldFilter.accept(fieldName))) {
                     String subContentType = headers.getHeader(CONTENT_TYPE);
                     //mixed需要重新指定boundary,保留字段名,舍弃body体
                     if (subContentType != null &&  subContentType.toLowerCase(Locale.ENGLISH).startsWith(MULTIPART_MIXED)) {
@@ -146,24 +281,127 @@ class ItemIterator{
                 }
             }
             //如果没有创建一个Item的条件(比如没有字段名),将跳过此Item的字节
-            multi.discardBodyData();
+            notifier.noteSkippedBytes(multi.discardBodyData());
         }
     }
 
     /**
+     * @param fieldFilter 字段过滤器,未被接受的条目将直接跳过,不会创建 {@link Item}
+     */
+    void setFieldFilter(FieldFilter fieldFilter) {
+        this.fieldFilter = fieldFilter;
+    }
+
+    /**
+     * 将整个请求体读入解析缓冲,必须在第一次调用 {@link #hasNext()} 之前调用
+     *
+     * @return 容纳整个请求体的数组
+     * @throws IOException
+     * @see MultipartStream#readWholeBody()
+     */
+    byte[] readWholeBody() throws IOException {
+        return multi.readWholeBody();
+    }
+
+    /**
+     * 提前结束解析,之后 {@link #hasNext()} 将返回false
+     *
+     * @param policy 剩余数据的处理方式
+     * @return 丢弃的字节数
+     * @throws IOException
+     */
+    long abandon(RemainderPolicy policy) throws IOException {
+        if (eof) {
+            return 0;
+        }
+        eof = true;
+        itemValid = false;
+        currentItem = null;
+        return multi.abandon(policy);
+    }
+
+    /**
+     * <p>取得contentType中boundary参数的值,去掉两端的空白与引号
+     *
+     * <p>只对contentType扫描一次,不使用正则表达式,攻击者构造的contentType不会导致回溯
+     *
      * @param contentType  contentType完整字符串
      *
      * @return 分界线的byte数组
+     * @throws RuntimeException contentType中没有boundary参数
      */
-    private byte[] getBoundary(String contentType) {
-        String boundaryStr = contentType.replaceAll(".*boundary=", "").trim();
-        byte[] boundary;
+    static byte[] getBoundary(String contentType) {
+        String boundaryStr = parameter(contentType, BOUNDARY);
+        if (boundaryStr == null) {
+            throw new RuntimeException(
+                    String.format("the request was rejected because no multipart boundary was found, content type header is %s",
+                            contentType));
+        }
         try {
-            boundary = boundaryStr.getBytes("ISO-8859-1");
+            return boundaryStr.getBytes("ISO-8859-1");
         } catch (UnsupportedEncodingException e) {
-            boundary = boundaryStr.getBytes(); // Intentionally falls back to default charset
+            return boundaryStr.getBytes(); // Intentionally falls back to default charset
+        }
+    }
+
+    /**
+     * <p>在 <code>type; name1=value1; name2="value2"</code> 形式的header值中查找参数,参数名不区分大小写
+     *
+     * <p>引号中的 <code>;</code> 与 <code>=</code> 属于值的一部分.只向前扫描一次,不创建中间数组,
+     * 参数再多也是线性的
+     *
+     * @param header header值
+     * @param name   参数名
+     * @return 参数的值,带引号时去掉引号,否则去掉两端空白;参数不存在或值为空(不带引号)时为null
+     */
+    static String parameter(String header, String name) {
+        final int len = header.length();
+        //第一段是类型,不是参数
+        int pos = header.indexOf(';');
+        while (pos != -1 && pos < len) {
+            int keyStart = pos + 1;
+            int keyEnd = keyStart;
+            while (keyEnd < len && header.charAt(keyEnd) != '=' && header.charAt(keyEnd) != ';') {
+                keyEnd++;
+            }
+            if (keyEnd == len || header.charAt(keyEnd) == ';') {
+                //没有值的参数
+                pos = keyEnd;
+                continue;
+            }
+            //去掉参数名两端的空白后比较,不创建子串
+            int nameStart = keyStart;
+            int nameEnd = keyEnd;
+            while (nameStart < nameEnd && Character.isWhitespace(header.charAt(nameStart))) {
+                nameStart++;
+            }
+            while (nameEnd > nameStart && Character.isWhitespace(header.charAt(nameEnd - 1))) {
+                nameEnd--;
+            }
+            boolean matches = nameEnd - nameStart == name.length()
+                    && header.regionMatches(true, nameStart, name, 0, name.length());
+            int valueStart = keyEnd + 1;
+            while (valueStart < len && (header.charAt(valueStart) == ' ' || header.charAt(valueStart) == '\t')) {
+                valueStart++;
+            }
+            if (valueStart < len && header.charAt(valueStart) == '"') {
+                int close = header.indexOf('"', valueStart + 1);
+                if (matches) {
+                    return header.substring(valueStart + 1, close == -1 ? len : close);
+                }
+                pos = close == -1 ? -1 : header.indexOf(';', close + 1);
+            } else {
+                int valueEnd = header.indexOf(';', valueStart);
+                if (matches) {
+                    String value = header.substring(valueStart, valueEnd == -1 ? len : valueEnd).trim();
+                    if (!value.isEmpty()) {
+                        return value;
+                    }
+                }
+                pos = valueEnd;
+            }
         }
-        return boundary;
+        return null;
     }
 
 
@@ -176,7 +414,7 @@ class ItemIterator{
      *
      * @return 一个包含HTTP Request Header 的映射
      */
-    private HeaderContext getParsedHeaders(String headerPart) {
+    static HeaderContext getParsedHeaders(String headerPart) {
         final int len = headerPart.length();
         HeaderContext headers = new HeaderContext();
         int start = 0;
@@ -219,7 +457,7 @@ class ItemIterator{
      * @param start 开始位置
      * @return  \r\n 序列的索引，该序列标志的一行结束
      */
-    private int parseEndOfLine(String headerPart, int start) {
+    private static int parseEndOfLine(String headerPart, int start) {
         int index = start;
         for (;;) {
             int offset = headerPart.indexOf('\r', index);
@@ -239,7 +477,7 @@ class ItemIterator{
      * @param headers HeaderContext
      * @param header 整个header字符串
      */
-    private void parseHeaderLine(HeaderContext headers, String header) {
+    private static void parseHeaderLine(HeaderContext headers, String header) {
         final int colonOffset = header.indexOf(':');
         if (colonOffset == -1) {
             //没有冒号的行忽略
@@ -259,18 +497,11 @@ class ItemIterator{
      *
      * @return 字段名
      */
-    private String getFieldName(HeaderContext headers) {
+    static String getFieldName(HeaderContext headers) {
         String pContentDisposition = headers.getHeader(CONTENT_DISPOSITION);
         String fieldName = null;
         if (pContentDisposition != null && pContentDisposition.toLowerCase(Locale.ENGLISH).startsWith(FORM_DATA)) {
-            for (String desc : pContentDisposition.split(";")) {
-                desc = desc.trim();
-                String[] kv = desc.split("=");
-                if(kv.length > 1 && kv[0].equals("name")){
-                    fieldName = strip(kv[1]);
-                    break;
-                }
-            }
+            fieldName = parameter(pContentDisposition, NAME);
             if (fieldName != null) {
                 fieldName = fieldName.trim();
             }
@@ -286,31 +517,17 @@ class ItemIterator{
      *
      * @return 文件名
      */
-    private String getFileName(HeaderContext headers) {
+    static String getFileName(HeaderContext headers) {
         String pContentDisposition = headers.getHeader(CONTENT_DISPOSITION);
         String fileName = null;
-        boolean hasFileName = false;
         if (pContentDisposition != null) {
             String cdl = pContentDisposition.toLowerCase(Locale.ENGLISH);
             if (cdl.startsWith(FORM_DATA) || cdl.startsWith(ATTACHMENT)) {
-                for (String desc : pContentDisposition.split(";")) {
-                    desc = desc.trim();
-                    String[] kv = desc.split("=");
-                    if(kv.length > 1 && kv[0].equals("filename")){
-                        hasFileName = true;
-                        fileName = strip(kv[1]);
-                        break;
-                    }
-                }
-                if(!hasFileName){
+                fileName = parameter(pContentDisposition, FILENAME);
+                if (fileName == null) {
                     return null;
                 }
-                if (fileName != null) {
-                    fileName = fileName.trim();
-                } else {
-                    //如果fileName == null, 这种情况应该不会发生
-                    fileName = "";
-                }
+                fileName = fileName.trim();
             }
         }
         return fileName;
@@ -318,17 +535,32 @@ class ItemIterator{
 
 
     /**
-     * @param str 字符串
-     * @return 剥去外层引号后的字符串
+     * @return 最近一个条目的 <code>header-part</code> 在输入流中的偏移量
      */
-    private String strip(String str){
-        char[] chars = str.toCharArray();
-        if(chars[0] == '"' && chars[chars.length-1] == '"'){
-            return str.substring(1, chars.length - 1);
-        }
-        return str;
+    long headerOffset() {
+        return headerOffset;
+    }
+
+    /**
+     * @return 最近一个条目的 <code>body-data</code> 在输入流中的偏移量
+     */
+    long bodyOffset() {
+        return bodyOffset;
+    }
+
+    /**
+     * @return 运行过程的记录器
+     */
+    MultipartStream.ProgressNotifier notifier() {
+        return notifier;
     }
 
+    /**
+     * @return 下一个待处理的字节在输入流中的偏移量,当前条目读取完毕后即为其 <code>body-data</code> 的结尾
+     */
+    long position() {
+        return multi.position();
+    }
 
     /**
      * 返回是否有其他的 {@link Item} 可用
@@ -336,7 +568,7 @@ class ItemIterator{
      * @throws IOException Reading the file item failed.
      * @return True, 如果有1个或更多额外的条目可用；否则返回false
      */
-    boolean hasNext() throws IOException{
+    public boolean hasNext() throws IOException{
         if (eof) {
             return false;
         }
@@ -354,7 +586,7 @@ class ItemIterator{
      * @throws IOException Reading the file item failed.
      * @return 返回一个Item实例，该实例提供了访问下一个文件条目的入口
      */
-    Item next() throws IOException{
+    public Item next() throws IOException{
         if (eof  ||  (!itemValid && !hasNext())) {
             throw new NoSuchElementException();
         }
@@ -387,7 +619,7 @@ class ItemIterator{
         /**
          * 该条目的流
          */
-        private final InputStream stream;
+        private final MultipartStream.ItemInputStream stream;
 
         /**
          * 当前条目是否已打开
@@ -436,6 +668,22 @@ class ItemIterator{
             return isFormField;
         }
 
+        @Override
+        public byte[] peek(int n) throws IOException {
+            if (currentItem != this) {
+                throw new IllegalStateException("The item is no longer current.");
+            }
+            return stream.peek(n);
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (currentItem != this) {
+                throw new IllegalStateException("The item is no longer current.");
+            }
+            return stream.transferTo(target);
+        }
+
         @Override
         public InputStream openStream() throws IOException {
             if (opened) {
@@ -446,8 +694,11 @@ class ItemIterator{
             return stream;
         }
 
+        /**
+         * 跳过未读取的body,直至下一个boundary
+         */
         void close() throws IOException {
-            stream.close();
+            notifier.noteSkippedBytes(stream.skipRemaining());
         }
 
         @Override
@@ -0,0 +1,290 @@
+package com.sllx.fileupload.core;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>多个请求共享的内存预算
+ *
+ * <p>内存中的条目每增长一块都要先从预算中预留,条目被删除或回收时归还.预留与归还都是无锁的CAS操作,
+ * 只有 {@link BudgetPolicy#BLOCK} 策略下预算不足时才会进入等待.
+ *
+ * <p>预留量按条目的有效字节数计算,不包含 {@link java.io.ByteArrayOutputStream} 扩容留下的空余容量.
+ */
+public class MemoryBudget {
+
+    /**
+     * 在预留对象被回收后归还预算
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * 预算上限
+     */
+    private final long limit;
+
+    /**
+     * 预算耗尽时的策略
+     */
+    private final BudgetPolicy policy;
+
+    /**
+     * {@link BudgetPolicy#BLOCK} 策略下的最长等待时间
+     */
+    private final long timeoutNanos;
+
+    /**
+     * 当前已预留的字节数
+     */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * 正在等待预算的线程数,为0时归还预算不需要加锁通知
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final Object lock = new Object();
+
+    /**
+     * @param limit  预算上限(字节)
+     * @param policy 预算耗尽时的策略,不能为 {@link BudgetPolicy#BLOCK}
+     */
+    public MemoryBudget(long limit, BudgetPolicy policy) {
+        this(limit, policy, 0, TimeUnit.MILLISECONDS);
+        if (policy == BudgetPolicy.BLOCK) {
+            throw new IllegalArgumentException("BLOCK policy requires a timeout");
+        }
+    }
+
+    /**
+     * @param limit   预算上限(字节)
+     * @param policy  预算耗尽时的策略
+     * @param timeout {@link BudgetPolicy#BLOCK} 策略下的最长等待时间
+     * @param unit    时间单位
+     */
+    public MemoryBudget(long limit, BudgetPolicy policy, long timeout, TimeUnit unit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        this.limit = limit;
+        this.policy = policy;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * <p>在解析开始前根据请求声明的长度决定是否接受请求
+     *
+     * <p>{@link BudgetPolicy#SPILL} 总是接受,{@link BudgetPolicy#REJECT} 在剩余预算不足时拒绝,
+     * {@link BudgetPolicy#BLOCK} 在请求长度超过预算上限时拒绝.长度未知时总是接受.
+     *
+     * @param contentLength 请求声明的长度,未知时为-1
+     * @return 是否接受
+     */
+    public boolean admit(long contentLength) {
+        if (contentLength < 0 || policy == BudgetPolicy.SPILL) {
+            return true;
+        }
+        if (policy == BudgetPolicy.REJECT) {
+            return contentLength <= getAvailable();
+        }
+        return contentLength <= limit;
+    }
+
+    /**
+     * 不等待地预留
+     *
+     * @param bytes 字节数
+     * @return 是否预留成功
+     */
+    public boolean tryReserve(long bytes) {
+        for (;;) {
+            long current = reserved.get();
+            long next = current + bytes;
+            if (next > limit) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, next)) {
+                UploadStatistics.global().noteMemoryReserved(bytes);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 按策略预留
+     *
+     * @param bytes 字节数
+     * @return 预留成功返回true,策略为 {@link BudgetPolicy#SPILL} 且预算不足时返回false
+     * @throws BudgetExceededException 策略为 {@link BudgetPolicy#REJECT} 且预算不足,
+     *                                 或策略为 {@link BudgetPolicy#BLOCK} 且等待超时
+     */
+    boolean reserve(long bytes) throws BudgetExceededException {
+        if (tryReserve(bytes)) {
+            return true;
+        }
+        switch (policy) {
+            case SPILL:
+                return false;
+            case BLOCK:
+                if (await(bytes)) {
+                    return true;
+                }
+                throw new BudgetExceededException(String.format(
+                        "Timed out waiting for %s bytes of memory budget", Long.valueOf(bytes)));
+            default:
+                throw new BudgetExceededException(String.format(
+                        "Memory budget of %s bytes is exhausted", Long.valueOf(limit)));
+        }
+    }
+
+    /**
+     * 在超时之前等待其他请求归还预算
+     */
+    private boolean await(long bytes) throws BudgetExceededException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        waiters.incrementAndGet();
+        try {
+            synchronized (lock) {
+                while (!tryReserve(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BudgetExceededException("Interrupted while waiting for memory budget");
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 归还预算
+     *
+     * @param bytes 字节数
+     */
+    public void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        reserved.addAndGet(-bytes);
+        UploadStatistics.global().noteMemoryReserved(-bytes);
+        if (waiters.get() > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 为由多个条目共享的对象(整体读入的请求数组)预留的预算,在所有条目都被删除后归还.
+     * 条目未被删除时在 <code>referent</code> 不可达后归还
+     *
+     * @param referent 预留的对象
+     * @param bytes    已预留的字节数
+     * @return 共享的预留,每个条目创建时调用 {@link Shared#retain()},删除时调用 {@link Shared#release()}
+     */
+    Shared share(Object referent, long bytes) {
+        final Shared shared = new Shared(this, bytes);
+        CLEANER.register(referent, new Runnable() {
+            @Override
+            public void run() {
+                shared.releaseAll();
+            }
+        });
+        return shared;
+    }
+
+    /**
+     * <p>多个条目共享的一次预留,按条目计数
+     *
+     * <p>解析期间计数可能暂时为0,因此只有在 {@link #seal()} 之后计数归零才归还.无论通过计数还是回收,只归还一次
+     */
+    static final class Shared {
+
+        private final MemoryBudget budget;
+
+        private final long bytes;
+
+        private int refs;
+
+        /**
+         * 解析已结束,不会再有新的条目
+         */
+        private boolean sealed;
+
+        private boolean released;
+
+        Shared(MemoryBudget budget, long bytes) {
+            this.budget = budget;
+            this.bytes = bytes;
+        }
+
+        synchronized void retain() {
+            refs++;
+        }
+
+        void release() {
+            synchronized (this) {
+                refs--;
+                if (!sealed || refs > 0 || released) {
+                    return;
+                }
+                released = true;
+            }
+            budget.release(bytes);
+        }
+
+        /**
+         * 解析结束时调用,此时没有条目持有引用则立即归还
+         */
+        void seal() {
+            synchronized (this) {
+                sealed = true;
+                if (refs > 0 || released) {
+                    return;
+                }
+                released = true;
+            }
+            budget.release(bytes);
+        }
+
+        private void releaseAll() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            budget.release(bytes);
+        }
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public BudgetPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return 当前已预留的字节数
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * @return 当前剩余的字节数
+     */
+    public long getAvailable() {
+        return limit - reserved.get();
+    }
+}
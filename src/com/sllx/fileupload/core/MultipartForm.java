@@ -0,0 +1,299 @@
+package com.sllx.fileupload.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>按字段名索引的解析结果
+ *
+ * <p>条目按原始顺序保存,索引在解析时随每个条目加入,不需要再遍历一次.索引只是两个int数组:
+ * 以开放寻址保存每个字段名第一个与最后一个条目序号的散列表,以及把同名条目按顺序串起来的链,
+ * 因此按名称查找是O(1),同名的多个值按出现顺序返回,不为每个字段创建额外的对象.
+ *
+ * <p>类型化的访问方法只在被调用时解码与转换,不需要的字段不会被解码
+ */
+public class MultipartForm implements Iterable<Part> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ArrayList<Part> parts = new ArrayList<Part>();
+
+    /**
+     * 散列表,保存每个字段名第一个条目的序号加一,0表示空槽
+     */
+    private int[] firsts = new int[INITIAL_CAPACITY];
+
+    /**
+     * 与 {@link #firsts} 对应,每个字段名最后一个条目的序号
+     */
+    private int[] lasts = new int[INITIAL_CAPACITY];
+
+    /**
+     * 每个条目之后同名条目的序号,没有时为-1
+     */
+    private int[] next = new int[INITIAL_CAPACITY];
+
+    /**
+     * 不同的字段名数
+     */
+    private int names;
+
+    MultipartForm() {
+    }
+
+    /**
+     * 在末尾加入一个条目并更新索引
+     */
+    void add(Part part) {
+        int index = parts.size();
+        parts.add(part);
+        if (index == next.length) {
+            int[] grown = new int[index * 2];
+            System.arraycopy(next, 0, grown, 0, index);
+            next = grown;
+        }
+        next[index] = -1;
+        String name = part.getField();
+        int slot = find(name);
+        if (firsts[slot] != 0) {
+            next[lasts[slot]] = index;
+            lasts[slot] = index;
+            return;
+        }
+        firsts[slot] = index + 1;
+        lasts[slot] = index;
+        //负载不超过1/2,探测序列保持很短
+        if (++names * 2 > firsts.length) {
+            rehash(firsts.length * 2);
+        }
+    }
+
+    /**
+     * @return <code>name</code> 所在的槽,不存在时为应当插入的空槽
+     */
+    private int find(String name) {
+        int mask = firsts.length - 1;
+        int slot = hash(name) & mask;
+        for (;;) {
+            int first = firsts[slot];
+            if (first == 0 || equal(parts.get(first - 1).getField(), name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldFirsts = firsts;
+        int[] oldLasts = lasts;
+        firsts = new int[capacity];
+        lasts = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldFirsts.length; i++) {
+            if (oldFirsts[i] == 0) {
+                continue;
+            }
+            int slot = hash(parts.get(oldFirsts[i] - 1).getField()) & mask;
+            while (firsts[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            firsts[slot] = oldFirsts[i];
+            lasts[slot] = oldLasts[i];
+        }
+    }
+
+    private static int hash(String name) {
+        if (name == null) {
+            return 0;
+        }
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return 字段第一个条目的序号,不存在时为-1
+     */
+    private int firstIndex(String name) {
+        return firsts[find(name)] - 1;
+    }
+
+    /**
+     * 解析失败或不再需要时释放所有条目占用的内存预算与临时文件
+     */
+    public void delete() {
+        for (Part part : parts) {
+            part.delete();
+        }
+    }
+
+    void trimToSize() {
+        parts.trimToSize();
+    }
+
+    /**
+     * @return 保存条目的列表本身,供 {@link Upload#parseRequest} 直接返回
+     */
+    List<Part> asList() {
+        return parts;
+    }
+
+    /**
+     * @return 条目数
+     */
+    public int size() {
+        return parts.size();
+    }
+
+    /**
+     * @param name 字段名
+     * @return 是否存在该字段
+     */
+    public boolean contains(String name) {
+        return firstIndex(name) >= 0;
+    }
+
+    /**
+     * @param name 字段名
+     * @return 字段的第一个条目,不存在时为null
+     */
+    public Part getPart(String name) {
+        int index = firstIndex(name);
+        return index < 0 ? null : parts.get(index);
+    }
+
+    /**
+     * @param name 字段名
+     * @return 字段的所有条目,按出现顺序排列,不存在时为空列表
+     */
+    public List<Part> getParts(String name) {
+        int index = firstIndex(name);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        List<Part> result = new ArrayList<Part>(2);
+        for (; index >= 0; index = next[index]) {
+            result.add(parts.get(index));
+        }
+        return result;
+    }
+
+    /**
+     * @return 按原始顺序排列的所有条目
+     */
+    public List<Part> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * @return 按第一次出现的顺序排列的所有字段名
+     */
+    public List<String> getFieldNames() {
+        List<String> result = new ArrayList<String>(names);
+        for (int i = 0; i < parts.size(); i++) {
+            String name = parts.get(i).getField();
+            if (firstIndex(name) == i) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param name 字段名
+     * @return 字段第一个条目的值,不存在时为null
+     */
+    public String getString(String name) {
+        Part part = getPart(name);
+        return part == null ? null : part.getValue();
+    }
+
+    /**
+     * @param name         字段名
+     * @param defaultValue 字段不存在时的值
+     * @return 字段第一个条目的值
+     */
+    public String getString(String name, String defaultValue) {
+        String value = getString(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @param name 字段名
+     * @return 字段所有条目的值,按出现顺序排列,不存在时为空列表
+     */
+    public List<String> getStrings(String name) {
+        int index = firstIndex(name);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>(2);
+        for (; index >= 0; index = next[index]) {
+            result.add(parts.get(index).getValue());
+        }
+        return result;
+    }
+
+    /**
+     * @param name         字段名
+     * @param defaultValue 字段不存在或值为空时的值
+     * @return 字段第一个条目的值
+     * @throws NumberFormatException 值不是整数
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = trimmed(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @param name         字段名
+     * @param defaultValue 字段不存在或值为空时的值
+     * @return 字段第一个条目的值
+     * @throws NumberFormatException 值不是整数
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = trimmed(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * 值为 <code>true</code>、<code>on</code> 或 <code>1</code>(不区分大小写)时为true,
+     * 与浏览器提交复选框的方式一致
+     *
+     * @param name         字段名
+     * @param defaultValue 字段不存在或值为空时的值
+     * @return 字段第一个条目的值
+     */
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = trimmed(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return "true".equalsIgnoreCase(value) || "on".equalsIgnoreCase(value) || "1".equals(value);
+    }
+
+    /**
+     * @return 去掉首尾空白后的值,字段不存在或值为空时为null
+     */
+    private String trimmed(String name) {
+        String value = getString(name);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * 按原始顺序遍历所有条目
+     */
+    @Override
+    public Iterator<Part> iterator() {
+        return getParts().iterator();
+    }
+}
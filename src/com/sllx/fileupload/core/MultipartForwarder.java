@@ -0,0 +1,276 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Streams;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>直通模式: 边解析边将各个条目重新写出到 {@link OutputStream}, 不把任何条目缓存在内存中
+ *
+ * <p>未被改写的条目body直接从{@link MultipartStream}的buffer中按块写出,每个请求占用的内存
+ * 只有解析buffer本身,与上传大小无关.<code>Content-Length</code>会发生变化,应使用分块传输.
+ *
+ * <p>请求中的分界线由客户端选择,插入的条目可能包含它而截断或伪造条目,因此输出使用随机生成的分界线,
+ * 转发时应使用 {@link #getContentType()} 作为<code>Content-Type</code>,每次转发后分界线都会更换.
+ *
+ * <p>可以通过 {@link Rewriter} 过滤或改写条目的header,通过 {@link #addField(String, String)}
+ * 与 {@link #addFile(String, String, String, InputStream)} 在末尾插入新的条目,插入的条目只用于下一次转发.
+ */
+public class MultipartForwarder {
+
+    private static final String CONTENT_DISPOSITION = "Content-Disposition";
+
+    private static final String FORM_DATA = "form-data";
+
+    private static final byte[] CRLF = {0x0D, 0x0A};
+
+    private static final byte[] DASHES = {0x2D, 0x2D};
+
+    private static final char[] BOUNDARY_CHARS =
+            "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * 条目改写器
+     */
+    public interface Rewriter {
+
+        /**
+         * 在条目写出之前调用,可以直接修改 <code>headers</code>
+         *
+         * @param fieldName 字段名
+         * @param fileName  文件名,表单域为null
+         * @param headers   条目的header,修改后的header将被写出
+         * @return 若返回false,该条目将被舍弃
+         */
+        boolean rewrite(String fieldName, String fileName, HeaderContext headers);
+    }
+
+    /**
+     * 改写器,为null时所有条目原样转发
+     */
+    private Rewriter rewriter;
+
+    /**
+     * 追加在下一次转发末尾的条目
+     */
+    private final List<Insertion> insertions = new ArrayList<Insertion>();
+
+    /**
+     * 下一次转发使用的分界线
+     */
+    private String boundary = newBoundary();
+
+    /**
+     * @return 下一次转发的输出对应的<code>Content-Type</code>,需要在 {@link #forward} 之前取得
+     */
+    public String getContentType() {
+        return "multipart/" + FORM_DATA + "; boundary=" + boundary;
+    }
+
+    public void setRewriter(Rewriter rewriter) {
+        this.rewriter = rewriter;
+    }
+
+    /**
+     * 在末尾插入一个表单域
+     * @param fieldName 字段名
+     * @param value     值,使用请求的编码写出
+     */
+    public void addField(String fieldName, String value) {
+        insertions.add(new Insertion(fieldName, null, null, value, null));
+    }
+
+    /**
+     * 在末尾插入一个文件条目,转发时才会读取 <code>content</code>,转发结束后无论成功与否都将其关闭
+     * @param fieldName   字段名
+     * @param fileName    文件名
+     * @param contentType contentType,可以为null
+     * @param content     文件内容
+     */
+    public void addFile(String fieldName, String fileName, String contentType, InputStream content) {
+        insertions.add(new Insertion(fieldName, fileName, contentType, null, content));
+    }
+
+    /**
+     * 解析请求并将结果写入 <code>output</code>, 写出完毕后不会关闭 <code>output</code>.
+     * 输出使用调用前 {@link #getContentType()} 中的分界线
+     *
+     * @param request 请求
+     * @param output  转发的目标
+     * @return 写出的条目数
+     * @throws IOException
+     */
+    public int forward(HttpServletRequest request, OutputStream output) throws IOException {
+        return forward(RequestContext.of(request), output);
+    }
+
+    /**
+     * 解析Servlet以外来源的请求并转发
+     *
+     * @see #forward(HttpServletRequest, OutputStream)
+     */
+    public int forward(RequestContext ctx, OutputStream output) throws IOException {
+        //请求的contentType无效时插入的条目同样作废
+        List<Insertion> pending = new ArrayList<Insertion>(insertions);
+        insertions.clear();
+        byte[] boundary = this.boundary.getBytes("ISO-8859-1");
+        this.boundary = newBoundary();
+        try {
+            return forward(ctx, output, ctx.getCharacterEncoding(), boundary, pending);
+        } finally {
+            //转发失败时未写出的文件条目也需要关闭
+            for (Insertion insertion : pending) {
+                if (insertion.content != null) {
+                    try {
+                        insertion.content.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    private int forward(RequestContext ctx, OutputStream output, String encoding, byte[] boundary,
+                        List<Insertion> pending) throws IOException {
+        ItemIterator iter = new ItemIterator(ctx);
+        int parts = 0;
+        while (iter.hasNext()) {
+            Item item = iter.next();
+            HeaderContext headers = item.getHeaders();
+            if (rewriter != null && !rewriter.rewrite(item.getFieldName(), item.getFileName(), headers)) {
+                //未读取的body将在查找下一个条目时被跳过
+                continue;
+            }
+            normalizeDisposition(item, headers);
+            writeDelimiter(output, boundary, parts++ > 0);
+            output.write(headers.toHeaderPart().getBytes(encoding));
+            output.write(CRLF);
+            item.openStream().transferTo(output);
+        }
+        for (Insertion insertion : pending) {
+            writeDelimiter(output, boundary, parts++ > 0);
+            output.write(insertion.headerPart().getBytes(encoding));
+            output.write(CRLF);
+            if (insertion.content != null) {
+                Streams.copy(insertion.content, output, false);
+            } else {
+                output.write(insertion.value.getBytes(encoding));
+            }
+        }
+        if (parts > 0) {
+            output.write(CRLF);
+        }
+        output.write(DASHES);
+        output.write(boundary);
+        output.write(DASHES);
+        output.write(CRLF);
+        output.flush();
+        return parts;
+    }
+
+    /**
+     * multipart/mixed中的子条目被提升到外层,需要将其<code>Content-Disposition</code>改写为form-data
+     */
+    private void normalizeDisposition(Item item, HeaderContext headers) {
+        String disposition = headers.getHeader(CONTENT_DISPOSITION);
+        if (disposition != null && disposition.toLowerCase(Locale.ENGLISH).startsWith(FORM_DATA)) {
+            return;
+        }
+        headers.setHeader(CONTENT_DISPOSITION, disposition(item.getFieldName(), item.getFileName()));
+    }
+
+    private static String disposition(String fieldName, String fileName) {
+        StringBuilder sb = new StringBuilder(FORM_DATA).append("; name=\"");
+        appendQuoted(sb, fieldName).append('"');
+        if (fileName != null) {
+            sb.append("; filename=\"");
+            appendQuoted(sb, fileName).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 与浏览器相同,将引号与回车换行符写为%22,%0D,%0A.{@link ItemIterator}读取引号内的值时
+     * 不处理转义,反斜杠转义无法被正确读回,而未转义的引号或换行会截断参数或破坏header
+     */
+    private static StringBuilder appendQuoted(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append("%22");
+            } else if (c == '\r') {
+                sb.append("%0D");
+            } else if (c == '\n') {
+                sb.append("%0A");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * 与浏览器相同,生成40个字符的随机分界线
+     */
+    private static String newBoundary() {
+        char[] chars = new char[40];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = BOUNDARY_CHARS[RANDOM.nextInt(BOUNDARY_CHARS.length)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 写出分界线,除第一个条目外,分界线前都需要一个回车换行符
+     */
+    private static void writeDelimiter(OutputStream output, byte[] boundary, boolean leadingCrlf) throws IOException {
+        if (leadingCrlf) {
+            output.write(CRLF);
+        }
+        output.write(DASHES);
+        output.write(boundary);
+        output.write(CRLF);
+    }
+
+    /**
+     * 待插入的条目
+     */
+    private static class Insertion {
+
+        private final String fieldName;
+
+        private final String fileName;
+
+        private final String contentType;
+
+        private final String value;
+
+        private final InputStream content;
+
+        Insertion(String fieldName, String fileName, String contentType, String value, InputStream content) {
+            this.fieldName = fieldName;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.value = value;
+            this.content = content;
+        }
+
+        String headerPart() {
+            HeaderContext headers = new HeaderContext();
+            headers.addHeader(CONTENT_DISPOSITION, disposition(fieldName, fileName));
+            if (contentType != null) {
+                headers.addHeader("Content-Type", contentType);
+            }
+            return headers.toHeaderPart();
+        }
+    }
+}
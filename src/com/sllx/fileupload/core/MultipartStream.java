@@ -1,8 +1,9 @@
 package com.sllx.fileupload.core;
 
-import com.sllx.fileupload.util.Streams;
-
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import static java.lang.String.format;
 
@@ -31,7 +32,22 @@ class MultipartStream {
     /**
      * 默认缓冲大小
      */
-    private static final int DEFAULT_BUFSIZE = 4096;
+    static final int DEFAULT_BUFSIZE = 4096;
+
+    /**
+     * 默认的缓冲大小上限
+     */
+    static final int DEFAULT_MAX_BUFSIZE = 64 * 1024;
+
+    /**
+     * 根据请求长度选择初始缓冲大小时,缓冲大小约为请求长度的 1/CONTENT_LENGTH_RATIO
+     */
+    private static final int CONTENT_LENGTH_RATIO = 16;
+
+    /**
+     * 连续多少次读取填满了请求的空间后扩大缓冲
+     */
+    private static final int FULL_READS_BEFORE_GROWTH = 2;
 
     /**
      * header-part结尾处的标志,两个回车换行符(表现为空一行)
@@ -56,12 +72,22 @@ class MultipartStream {
     /**
      * 输入流对象
      */
-    private final InputStream input;
+    private InputStream input;
+
+    /**
+     * 与 {@link #input} 对应的通道,不为null时直接通过通道读入<code>buffer</code>,{@link #input} 只用于关闭
+     */
+    private ReadableByteChannel channel;
+
+    /**
+     * 通过 {@link #channel} 读取时包装目标数组的缓冲,只在目标数组变化时重新创建
+     */
+    private ByteBuffer channelWindow;
 
     /**
      *必须保持的byte数据量,keepRegion范围内可能包含boundary
      */
-    private final int keepRegion;
+    private int keepRegion;
 
     /**
      *分界线加上前面标志(CRLF--)的总长度
@@ -71,17 +97,44 @@ class MultipartStream {
     /**
      *分界线的byte数组形式, 用来分隔Stream
      */
-    private final byte[] boundary;
+    private byte[] boundary;
+
+    /**
+     * {@link #boundary} 前 {@link #boundaryLength} 个字节的部分匹配表,分界线改变时重新计算
+     *
+     * @see #partialMatchTable(byte[], int, int[])
+     */
+    private int[] boundaryTable;
+
+    /**
+     * 上一次 {@link #findSeparator()} 扫描到的位置在整个输入流中的偏移量,-1表示需要从<code>head</code>重新扫描
+     */
+    private long scanOffset = -1;
+
+    /**
+     * 扫描到 {@link #scanOffset} 时已与分界线匹配的字节数
+     */
+    private int scanMatch;
 
     /**
      * 缓冲大小
      */
-    private final int bufSize;
+    private int bufSize;
+
+    /**
+     * 缓冲大小上限,读取持续填满缓冲时缓冲会扩大,直至该上限
+     */
+    private int maxBufSize;
+
+    /**
+     * 连续填满了请求空间的读取次数
+     */
+    private int fullReads;
 
     /**
      * 缓冲数组
      */
-    private final byte[] buffer;
+    private byte[] buffer;
 
     /**
      * 缓冲中的第一个有效字符的索引
@@ -97,6 +150,31 @@ class MultipartStream {
      */
     private int tail;
 
+    /**
+     * <code>buffer[0]</code> 在整个输入流中的偏移量
+     */
+    private long bufferOffset;
+
+    /**
+     * 是否已将整个请求体读入<code>buffer</code>,此时<code>buffer</code>不会再被压缩或覆盖
+     */
+    private boolean wholeBody;
+
+    /**
+     * 是否复用已关闭的 {@link ItemInputStream},只有在调用者不会保留旧条目的流时才能打开
+     */
+    private boolean recycleStreams;
+
+    /**
+     * 可以复用的条目流
+     */
+    private ItemInputStream recycledStream;
+
+    /**
+     * 读取 <code>header-part</code> 时使用的缓冲,每个条目复用
+     */
+    private final ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+
     /**
      * 读取 headers 时使用的编码.
      */
@@ -120,7 +198,7 @@ class MultipartStream {
      * @param notifier 通知器
      */
     MultipartStream(InputStream input, byte[] boundary, ProgressNotifier notifier ){
-        this(input, boundary, DEFAULT_BUFSIZE, notifier);
+        this(input, boundary, DEFAULT_BUFSIZE, DEFAULT_BUFSIZE, notifier);
     }
 
 
@@ -129,29 +207,63 @@ class MultipartStream {
      * 太小的缓冲会降低性能</p>
      * @param input    输入流
      * @param boundary 分界线
-     * @param bufSize  缓冲大小
+     * @param bufSize  初始缓冲大小
+     * @param maxBufSize 缓冲大小上限,与初始大小相同时缓冲不会扩大
      * @param notifier 通知器
      *
      * @throws IllegalArgumentException 如果缓冲过小
      *
      */
-    private MultipartStream(InputStream input, byte[] boundary, int bufSize, ProgressNotifier notifier) {
+    MultipartStream(InputStream input, byte[] boundary, int bufSize, int maxBufSize, ProgressNotifier notifier) {
+        this.notifier = notifier;
+        reset(input, boundary, bufSize, maxBufSize);
+    }
+
+
+    /**
+     * 以相同的缓冲大小重新开始解析另一个输入流
+     *
+     * @see #reset(InputStream, byte[], int, int)
+     */
+    void reset(InputStream input, byte[] boundary) {
+        reset(input, boundary, bufSize, maxBufSize);
+    }
+
+
+    /**
+     * <p>丢弃所有状态,重新开始解析另一个输入流,用于复用同一个实例解析多个请求
+     *
+     * <p>现有的缓冲大小在 [bufSize, maxBufSize] 之内时继续使用,分界线长度不变时分界线数组也继续使用
+     *
+     * @param input      输入流
+     * @param boundary   分界线
+     * @param bufSize    初始缓冲大小
+     * @param maxBufSize 缓冲大小上限
+     * @throws IllegalArgumentException 如果缓冲过小
+     */
+    void reset(InputStream input, byte[] boundary, int bufSize, int maxBufSize) {
         if (boundary == null) {
             throw new IllegalArgumentException("boundary may not be null");
         }
-
-        this.input = input;
-        this.bufSize = bufSize;
-        this.buffer = new byte[bufSize];
-        this.notifier = notifier;
-
         // 将boundary前面的item最后的 CR/LF 当做boundary的开头,并拼接上去
-        this.boundaryLength = boundary.length + BOUNDARY_PREFIX.length;
-        if (bufSize < this.boundaryLength + 1) {
+        int newBoundaryLength = boundary.length + BOUNDARY_PREFIX.length;
+        if (bufSize < newBoundaryLength + 1) {
             throw new IllegalArgumentException(
                     "The buffer size specified for the MultipartStream is too small");
         }
-        this.boundary = new byte[this.boundaryLength];
+
+        this.input = input;
+        this.channel = null;
+        this.maxBufSize = Math.max(bufSize, maxBufSize);
+        if (buffer == null || buffer.length < bufSize || buffer.length > this.maxBufSize) {
+            buffer = new byte[bufSize];
+        }
+        this.bufSize = buffer.length;
+
+        this.boundaryLength = newBoundaryLength;
+        if (this.boundary == null || this.boundary.length != newBoundaryLength) {
+            this.boundary = new byte[newBoundaryLength];
+        }
         this.keepRegion = this.boundary.length;
 
         //为boundary加上前缀
@@ -159,9 +271,115 @@ class MultipartStream {
                 BOUNDARY_PREFIX.length);
         System.arraycopy(boundary, 0, this.boundary, BOUNDARY_PREFIX.length,
                 boundary.length);
+        boundaryTable = partialMatchTable(this.boundary, boundaryLength, boundaryTable);
+        scanOffset = -1;
 
         head = 0;
         tail = 0;
+        bufferOffset = 0;
+        fullReads = 0;
+        wholeBody = false;
+        recycledStream = null;
+        if (notifier != null) {
+            notifier.reset();
+        }
+    }
+
+
+    /**
+     * <p>解析结束后放弃对输入流的引用,以便实例被缓存时不会使请求无法回收
+     *
+     * <p>整体读入模式下<code>buffer</code>仍被条目的切片引用,同样被放弃;扩大到超过 <code>retainBufSize</code>
+     * 的<code>buffer</code>也被放弃,缓存的实例不会一直占用最大的缓冲.两者都在下次{@link #reset}时重新分配
+     *
+     * @param retainBufSize 缓存期间保留的最大缓冲大小
+     */
+    void release(int retainBufSize) {
+        input = null;
+        channel = null;
+        channelWindow = null;
+        recycledStream = null;
+        if (wholeBody || (buffer != null && buffer.length > retainBufSize)) {
+            buffer = null;
+        }
+        if (notifier != null) {
+            notifier.reset();
+        }
+    }
+
+
+    /**
+     * @param channel 与输入流对应的阻塞通道,之后直接通过通道读入<code>buffer</code>;为null时从输入流读取
+     */
+    void setChannel(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param recycleStreams 是否复用已关闭的条目流,打开后旧条目的流不能再被使用
+     */
+    void setRecycleStreams(boolean recycleStreams) {
+        this.recycleStreams = recycleStreams;
+    }
+
+
+    /**
+     * 根据请求声明的长度选择初始缓冲大小
+     *
+     * @param contentLength 请求长度,未知时为-1
+     * @param minBufSize    最小缓冲大小
+     * @param maxBufSize    最大缓冲大小
+     * @return 不小于 <code>minBufSize</code> 且不大于 <code>maxBufSize</code> 的缓冲大小,
+     *         约为请求长度的1/16并向上取整为2的幂
+     */
+    static int bufferSizeFor(long contentLength, int minBufSize, int maxBufSize) {
+        if (contentLength <= 0) {
+            return minBufSize;
+        }
+        long wanted = contentLength / CONTENT_LENGTH_RATIO;
+        if (wanted <= minBufSize) {
+            return minBufSize;
+        }
+        if (wanted >= maxBufSize) {
+            return maxBufSize;
+        }
+        return (int) Math.min(maxBufSize, Long.highestOneBit(wanted - 1) << 1);
+    }
+
+
+    /**
+     * 整体读入时的缓冲大小.缓冲被条目的切片引用,只容纳请求体本身,与预留的预算一致;
+     * 比分界线还短的请求体按能容纳分界线的大小分配,以便得到通常的格式错误
+     *
+     * @param contentLength 请求长度
+     * @param contentType   请求的contentType,其中的boundary参数不会长于它
+     * @return 缓冲大小
+     */
+    static int wholeBodySize(long contentLength, String contentType) {
+        int boundaryLimit = (contentType != null ? contentType.length() : 0) + BOUNDARY_PREFIX.length + 1;
+        return (int) Math.max(contentLength, boundaryLimit);
+    }
+
+
+    /**
+     * <p>将整个请求体读入<code>buffer</code>,直至输入流结束或<code>buffer</code>已满
+     *
+     * <p>之后<code>buffer</code>不会再被压缩或覆盖,条目可以直接以切片的形式引用其中的数据,
+     * 请求体超出<code>buffer</code>的部分将被视为格式错误.必须在解析开始之前调用
+     *
+     * @return 容纳整个请求体的数组
+     * @throws IOException
+     */
+    byte[] readWholeBody() throws IOException {
+        wholeBody = true;
+        while (tail < bufSize) {
+            int bytesRead = readInput(buffer, tail, bufSize - tail);
+            if (bytesRead == -1) {
+                break;
+            }
+            tail += bytesRead;
+        }
+        return buffer;
     }
 
 
@@ -180,12 +398,17 @@ class MultipartStream {
         //第一个item的boundary前面没有回车换行符
         System.arraycopy(boundary, 2, boundary, 0, boundary.length - 2);
         boundaryLength = boundary.length - 2;
+        boundaryTable = partialMatchTable(boundary, boundaryLength, boundaryTable);
+        scanOffset = -1;
         try {
             // 舍弃所有数据直到boundary
             discardBodyData();
 
             //如果成功找到分界线,判断是否存在更多item
             return readBoundary();
+        } catch (UploadException e) {
+            //因限制或控制而中止,不能当作没有条目
+            throw e;
         } catch (IOException e) {
             return false;
         } finally {
@@ -194,6 +417,8 @@ class MultipartStream {
             boundaryLength = boundary.length;
             boundary[0] = CR;
             boundary[1] = LF;
+            boundaryTable = partialMatchTable(boundary, boundaryLength, boundaryTable);
+            scanOffset = -1;
         }
     }
 
@@ -202,9 +427,9 @@ class MultipartStream {
      * 越过boundary,检测后面是否还有item
      *
      * @return <code>true</code> 如果存在更多item;
-     *
+     * @throws UploadException 因限制或控制而中止
      */
-    boolean readBoundary(){
+    boolean readBoundary() throws UploadException {
         byte[] marker = new byte[2];
         boolean nextChunk = false;
         //跳过分界线
@@ -228,6 +453,8 @@ class MultipartStream {
                 throw new RuntimeException(
                         "Unexpected characters follow a boundary");
             }
+        } catch (UploadException e) {
+            throw e;
         } catch (IOException e) {
             throw new RuntimeException("Stream ended unexpectedly");
         }
@@ -250,13 +477,16 @@ class MultipartStream {
         }
         System.arraycopy(boundary, 0, this.boundary, BOUNDARY_PREFIX.length,
                 boundary.length);
+        boundaryTable = partialMatchTable(this.boundary, boundaryLength, boundaryTable);
+        scanOffset = -1;
     }
 
 
     /**
      * <p> 从当前 <code>item</code> 中读取 <code>header-part</code>
      *
-     * <p>Headers 是逐字节读取的，一直读到(包含)结尾处的{@link #HEADER_SEPARATOR}
+     * <p>在缓冲上逐段扫描,一直读到(包含)结尾处的{@link #HEADER_SEPARATOR},扫描过的每一段整体写入,
+     * 每个字节只被检查一次
      *
      * <p>只有当{@link #readBoundary()} 返回ture时才能调用此方法，否则将出现不可预知的情况
      *
@@ -266,26 +496,38 @@ class MultipartStream {
     String readHeaders() throws IOException{
         //与 HEADER_SEPARATOR 匹配的字节数
         int i = 0;
-        byte b;
         // to support multi-byte characters
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteArrayOutputStream baos = headerBuffer;
+        baos.reset();
         int size = 0;
+        byte[] buf = buffer;
         while (i < HEADER_SEPARATOR.length) {
-            //从buffer中读取1byte
-            b = readByte();
-            if (++size > HEADER_PART_SIZE_MAX) {
+            if (head == tail) {
+                refill();
+                buf = buffer;
+            }
+            int start = head;
+            //最多多扫描一个字节,用于判断是否超过上限
+            int end = (int) Math.min(tail, (long) start + HEADER_PART_SIZE_MAX + 1 - size);
+            int p = start;
+            while (p < end && i < HEADER_SEPARATOR.length) {
+                byte b = buf[p++];
+                //找到匹配的字节,将匹配数i加一,直至完全匹配;不匹配时若该字节是CR,它可能是新的匹配的开始
+                if (b == HEADER_SEPARATOR[i]) {
+                    i++;
+                } else {
+                    i = b == CR ? 1 : 0;
+                }
+            }
+            //在匹配 HEADER_SEPARATOR 之前一直将读取的字节写入baos
+            baos.write(buf, start, p - start);
+            size += p - start;
+            head = p;
+            if (size > HEADER_PART_SIZE_MAX) {
                 throw new RuntimeException(
                         format("Header section has more than %s bytes (maybe it is not properly terminated)",
                                 Integer.valueOf(HEADER_PART_SIZE_MAX)));
             }
-            //找到匹配的字节,将匹配数i加一,直至完全匹配,在此过程中一旦出现任何一个不匹配的字节,匹配数归零
-            if (b == HEADER_SEPARATOR[i]) {
-                i++;
-            } else {
-                i = 0;
-            }
-            //在匹配 HEADER_SEPARATOR 之前一直将读取的字节写入baos
-            baos.write(b);
         }
 
         //转换成String返回
@@ -308,16 +550,16 @@ class MultipartStream {
     /**
      * <p>从当前<code>item</code>中读取 <code>body-data</code> 并丢弃他
      *
-     * <p>使用该方法跳过不需要的item
+     * <p>使用该方法跳过不需要的item,跳过时只移动<code>head</code>,不会复制任何数据
      *
      * @return 跳过的数据量
      *
      * @throws IOException
      *
-     * @see MultipartStream#readBodyData(OutputStream)
+     * @see ItemInputStream#skipRemaining()
      */
-    int discardBodyData() throws  IOException {
-        return readBodyData(null);
+    long discardBodyData() throws  IOException {
+        return newInputStream().skipRemaining();
     }
 
 
@@ -325,7 +567,58 @@ class MultipartStream {
      * @return  {@link ItemInputStream}.
      */
     ItemInputStream newInputStream() {
-        return new ItemInputStream();
+        ItemInputStream stream = recycledStream;
+        if (stream != null && stream.closed) {
+            stream.reopen();
+            return stream;
+        }
+        stream = new ItemInputStream();
+        if (recycleStreams) {
+            recycledStream = stream;
+        }
+        return stream;
+    }
+
+
+    /**
+     * @return 下一个待处理的字节在整个输入流中的偏移量
+     */
+    long position() {
+        return bufferOffset + head;
+    }
+
+
+    /**
+     * 放弃解析剩余的数据
+     *
+     * @param policy {@link RemainderPolicy#DRAIN} 时将剩余数据读入<code>buffer</code>后直接丢弃,
+     *               {@link RemainderPolicy#CLOSE} 时直接关闭输入流
+     * @return 丢弃的字节数
+     * @throws IOException
+     */
+    long abandon(RemainderPolicy policy) throws IOException {
+        long drained = 0;
+        try {
+            if (policy == RemainderPolicy.DRAIN) {
+                drained = tail - head;
+                bufferOffset += tail;
+                head = 0;
+                tail = 0;
+                //整体读入模式下buffer仍被条目的切片引用,不能覆盖
+                byte[] drain = wholeBody ? new byte[DEFAULT_BUFSIZE] : buffer;
+                for (;;) {
+                    int bytesRead = readInput(drain, 0, drain.length);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    bufferOffset += bytesRead;
+                    drained += bytesRead;
+                }
+            }
+        } finally {
+            close();
+        }
+        return drained;
     }
 
 
@@ -348,18 +641,106 @@ class MultipartStream {
     private byte readByte() throws IOException {
         //缓冲耗尽
         if (head == tail) {
-            head = 0;
-            // 再填充
-            tail = input.read(buffer, head, bufSize);
-            if (tail == -1) {
-                //没有更多数据数据了
-                throw new IOException("No more data is available");
-            }
+            refill();
+        }
+        return buffer[head++];
+    }
+
+
+    /**
+     * 缓冲耗尽时从头开始再填充
+     *
+     * @throws java.io.IOException 如果没有更多数据
+     */
+    private void refill() throws IOException {
+        if (wholeBody) {
+            throw new IOException("No more data is available");
+        }
+        bufferOffset += tail;
+        head = 0;
+        tail = 0;
+        int bytesRead = readInput(buffer, head, bufSize);
+        if (bytesRead == -1) {
+            //没有更多数据数据了
+            throw new IOException("No more data is available");
+        }
+        tail = bytesRead;
+    }
+
+
+    /**
+     * 从输入流中读取数据,所有对输入流的读取都经过这里
+     *
+     * @param b   写入的目标,通常为<code>buffer</code>
+     * @param off 写入的起始位置
+     * @param len 最多读取的字节数
+     * @return 实际读取的字节数,没有更多数据时返回-1
+     * @throws IOException
+     */
+    private int readInput(byte[] b, int off, int len) throws IOException {
+        if (notifier != null) {
+            notifier.checkpoint();
+        }
+        int allowed = notifier != null ? notifier.limitRead(len) : len;
+        ParseEvents.Refill event = new ParseEvents.Refill();
+        event.begin();
+        int bytesRead;
+        try {
+            bytesRead = channel != null ? readChannel(b, off, allowed) : input.read(b, off, allowed);
+        } catch (IOException e) {
             if (notifier != null) {
-                notifier.noteBytesRead(tail);
+                notifier.checkAborted(e);
             }
+            throw e;
         }
-        return buffer[head++];
+        if (event.shouldCommit()) {
+            event.requested = allowed;
+            event.bytesRead = bytesRead;
+            event.commit();
+        }
+        if (notifier != null) {
+            if (bytesRead > 0) {
+                notifier.noteBytesRead(bytesRead);
+            } else if (bytesRead == -1) {
+                notifier.checkAborted(null);
+            }
+        }
+        if (bytesRead == len) {
+            fullReads++;
+        } else {
+            fullReads = 0;
+        }
+        return bytesRead;
+    }
+
+
+    /**
+     * 通过通道直接读入 <code>b</code>,不经过流的包装
+     */
+    private int readChannel(byte[] b, int off, int len) throws IOException {
+        if (channelWindow == null || channelWindow.array() != b) {
+            channelWindow = ByteBuffer.wrap(b);
+        }
+        channelWindow.limit(off + len).position(off);
+        return channel.read(channelWindow);
+    }
+
+
+    /**
+     * 若读取持续填满缓冲,将缓冲扩大一倍,直至{@link #maxBufSize}
+     *
+     * <p>只能在<code>head</code>为0时调用,<code>tail</code>之前的数据将被复制到新的缓冲
+     */
+    private void growIfSaturated() {
+        if (fullReads < FULL_READS_BEFORE_GROWTH || bufSize >= maxBufSize) {
+            return;
+        }
+        int newSize = (int) Math.min((long) bufSize * 2, maxBufSize);
+        byte[] newBuffer = new byte[newSize];
+        System.arraycopy(buffer, 0, newBuffer, 0, tail);
+        buffer = newBuffer;
+        bufSize = newSize;
+        fullReads = 0;
     }
 
 
@@ -383,56 +764,107 @@ class MultipartStream {
     }
 
 
-    /**
-     * <p>从当前<code>item</code>中读取 <code>body-data</code> 并写入到输出流
-     *
-     * <p>该方法具有更深层的含义,在调用{@link Streams#copy(java.io.InputStream, java.io.OutputStream, boolean)}
-     * 时,{@link ItemInputStream#read(byte[], int, int)}将被不断执行,一直执行到发现下一个分界线为止.
-     *
-     * @param output  <code>Stream</code> 写入的目标,如果为null,该方法将等效于 {@link #discardBodyData()}.
-     *
-     * @return 写入的数据量
-     *
-     * @throws IOException
-     */
-    private int readBodyData(OutputStream output) throws  IOException {
-        return (int) Streams.copy(newInputStream(), output, false); // N.B. Streams.copy closes the input stream
-    }
-
-
-
     /**
      * 从当前 <code>buffer</code> 中寻找 <code>boundary</code>,
      * 限定范围为<code>head</code> 和 <code>tail-boundaryLength</code> 之间.
      *
-     * <p>当first == maxpos时,将会对最后的boundaryLength部分进行匹配,若匹配失败,则表示这部分不存在boundary或者boundary被截断了.
-     * 因为截断位置不确定,所以最后boundaryLength长度的字节将被保留{@link ItemInputStream#findSeparator()},而在后续操作中,这段字节将被移动到buffer开头{@link ItemInputStream#makeAvailable()}.
+     * <p>没有部分匹配时直接查找下一个CR;部分匹配失败时按 {@link #boundaryTable} 回退,不重新比较已扫描的字节.
+     * 未找到时记录扫描到的位置与部分匹配的长度,读入更多数据后从该位置继续,而不是从<code>head</code>重新扫描.
+     * 因此即使数据中充满CR、与分界线仅差一个字节的序列,或者数据被逐字节地送达,每个字节也只被检查常数次
      *
      * @return 如果在 <code>buffer</code> 中找到了分界线,返回分界线在buffer中的起始位置, 如果未找到返回 <code>-1</code>
      */
     private int findSeparator() {
-        int first;
+        byte[] buf = buffer;
+        byte[] b = boundary;
+        int[] table = boundaryTable;
+        int length = boundaryLength;
         int match = 0;
-        //若buffer中head至tail之间的字节数小于boundaryLength,那么maxpos将小于head,循环将不会运行,返回值为-1
-        int maxpos = tail - boundaryLength;
-        for (first = head; first <= maxpos && match != boundaryLength; first++) {
-            first = findByte(boundary[0], first);
-            if (first == -1 || first > maxpos) {
-                return -1;
+        int i = head;
+        int end = tail;
+        if (scanOffset != -1) {
+            long resume = scanOffset - bufferOffset;
+            //部分匹配的字节必须仍在head之后
+            if (resume - scanMatch >= head && resume <= end) {
+                i = (int) resume;
+                match = scanMatch;
             }
-            for (match = 1; match < boundaryLength; match++) {
-                if (buffer[first + match] != boundary[match]) {
+        }
+        while (i < end) {
+            if (match == 0) {
+                i = findByte(b[0], i);
+                if (i == -1) {
+                    i = end;
                     break;
                 }
+                match = 1;
+                i++;
+                continue;
+            }
+            //连续匹配的部分与逐字节比较一样快
+            while (i < end && match < length && buf[i] == b[match]) {
+                i++;
+                match++;
+            }
+            if (match == length) {
+                scanOffset = -1;
+                return i - length;
+            }
+            if (i == end) {
+                break;
+            }
+            //不匹配时按部分匹配表回退,当前字节在下一轮重新比较
+            byte c = buf[i];
+            if (match == 1) {
+                //只匹配了第一个字节,回退后当前字节可能是新的开始
+                if (c == b[0]) {
+                    i++;
+                } else {
+                    match = 0;
+                }
+            } else {
+                match = table[match - 1];
             }
         }
-        if (match == boundaryLength) {
-            return first - 1;
-        }
+        scanOffset = bufferOffset + i;
+        scanMatch = match;
         return -1;
     }
 
 
+    /**
+     * 之后的 {@link #findSeparator()} 从<code>head</code>开始扫描,每个条目开始时调用
+     */
+    private void restartScan() {
+        scanOffset = -1;
+    }
+
+
+    /**
+     * 计算KMP部分匹配表: <code>table[k]</code> 为 <code>pattern[0, k]</code> 最长的、同时也是前缀的真后缀的长度
+     *
+     * @param pattern 模式
+     * @param length  模式的有效长度
+     * @param reuse   长度足够时复用的数组,可以为null
+     * @return 部分匹配表
+     */
+    static int[] partialMatchTable(byte[] pattern, int length, int[] reuse) {
+        int[] table = reuse != null && reuse.length >= length ? reuse : new int[length];
+        table[0] = 0;
+        int k = 0;
+        for (int i = 1; i < length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = table[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            table[i] = k;
+        }
+        return table;
+    }
+
+
     /**
      *在buffer中从指定的位置pos开始寻找一格指定的value
      *
@@ -455,7 +887,7 @@ class MultipartStream {
     /**
      * {@link InputStream}子类,用于读取{@link MultipartStream#input }中的内容
      */
-     private class ItemInputStream extends InputStream {
+    class ItemInputStream extends InputStream {
 
         /**
          * 已读取总字节数
@@ -481,6 +913,17 @@ class MultipartStream {
          * 创建一个实例
          */
         ItemInputStream() {
+            restartScan();
+            findSeparator();
+        }
+
+        /**
+         * 复用已关闭的实例读取下一个条目
+         */
+        private void reopen() {
+            total = 0;
+            closed = false;
+            restartScan();
             findSeparator();
         }
 
@@ -557,6 +1000,180 @@ class MultipartStream {
             return res;
         }
 
+        /**
+         * <p>返回当前条目接下来的至多 <code>n</code> 个字节,不消费它们,之后的读取仍从这些字节开始
+         *
+         * <p>必要时会从输入流读取更多数据,但只填充<code>buffer</code>,因此能预读的字节数受
+         * <code>buffer</code>大小的限制,条目较短时返回的字节数也会少于 <code>n</code>
+         *
+         * @param n 需要的字节数
+         * @return 预读到的字节的副本
+         * @throws IOException An I/O error occurred.
+         */
+        byte[] peek(int n) throws IOException {
+            if (closed) {
+                throw new RuntimeException("the stream is closed");
+            }
+            if (n < 0) {
+                throw new IllegalArgumentException("negative peek length: " + n);
+            }
+            int av = fill(n);
+            byte[] result = new byte[Math.min(n, av)];
+            System.arraycopy(buffer, head, result, 0, result.length);
+            return result;
+        }
+
+        /**
+         * 以切片的形式返回当前条目剩余的body并将其消费,只能在整体读入模式下使用
+         *
+         * @return 只读切片,与<code>buffer</code>共享数据
+         * @throws IOException An I/O error occurred.
+         */
+        ByteBuffer slice() throws IOException {
+            if (closed) {
+                throw new RuntimeException("the stream is closed");
+            }
+            if (!wholeBody) {
+                throw new IllegalStateException("the request body has not been read as a whole");
+            }
+            if (pos == -1) {
+                makeAvailable();
+            }
+            int len = pos - head;
+            ByteBuffer slice = ByteBuffer.wrap(buffer, head, len).slice().asReadOnlyBuffer();
+            head = pos;
+            total += len;
+            return slice;
+        }
+
+        /**
+         * <p>若当前条目剩余的body不超过 <code>limit</code> 且能完整地放入<code>buffer</code>,
+         * 直接从<code>buffer</code>中复制并消费这些字节
+         *
+         * <p>否则不消费任何字节,返回null,调用者应改用其他方式读取
+         *
+         * @param limit   最大字节数
+         * @return body的副本,或null
+         * @throws IOException An I/O error occurred.
+         */
+        byte[] readBytes(int limit) throws IOException {
+            if (closed) {
+                throw new RuntimeException("the stream is closed");
+            }
+            int av = fill(limit + 1);
+            if (pos == -1 || av > limit) {
+                return null;
+            }
+            byte[] value = new byte[av];
+            System.arraycopy(buffer, head, value, 0, av);
+            head += av;
+            total += av;
+            return value;
+        }
+
+        /**
+         * <p>在不消费任何字节的前提下读入更多数据,直至可用字节数达到 <code>n</code>,
+         * 或找到了boundary,或<code>buffer</code>已满
+         *
+         * <p>读入前将<code>head</code>之后的数据移动到<code>buffer</code>开头以腾出空间
+         *
+         * @param n 期望的可用字节数
+         * @return 可用字节数
+         * @throws IOException An I/O error occurred.
+         */
+        private int fill(int n) throws IOException {
+            int av = available();
+            while (pos == -1 && av < n && !wholeBody) {
+                if (head > 0) {
+                    System.arraycopy(buffer, head, buffer, 0, tail - head);
+                    bufferOffset += head;
+                    tail -= head;
+                    head = 0;
+                }
+                if (tail == bufSize) {
+                    break;
+                }
+                int bytesRead = readInput(buffer, tail, bufSize - tail);
+                if (bytesRead == -1) {
+                    throw new RuntimeException("Stream ended unexpectedly");
+                }
+                tail += bytesRead;
+                findSeparator();
+                av = available();
+            }
+            return av;
+        }
+
+        /**
+         * 将当前条目的剩余字节直接从<code>buffer</code>写入输出流,直至下一个boundary
+         *
+         * <p>每次写出的都是<code>buffer</code>中的一段可用区域,不经过中间数组,
+         * 因此无论条目多大,占用的内存都只有<code>buffer</code>本身
+         *
+         * @param out 写入的目标
+         * @return 写入的字节数
+         * @throws IOException An I/O error occurred.
+         */
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            if (closed) {
+                throw new RuntimeException("the stream is closed");
+            }
+            long transferred = 0;
+            for (;;) {
+                int av = available();
+                if (av == 0) {
+                    av = makeAvailable();
+                    if (av == 0) {
+                        break;
+                    }
+                }
+                out.write(buffer, head, av);
+                head += av;
+                total += av;
+                transferred += av;
+            }
+            return transferred;
+        }
+
+        /**
+         * <p>将当前条目的剩余字节直接从<code>buffer</code>写入通道,直至下一个boundary
+         *
+         * <p>与 {@link #transferTo(OutputStream)} 相同,每次写出<code>buffer</code>中的一段可用区域,
+         * 包装<code>buffer</code>的 {@link ByteBuffer} 只在<code>buffer</code>被替换时重新创建
+         *
+         * @param target 写入的目标
+         * @return 写入的字节数
+         * @throws IOException An I/O error occurred.
+         */
+        long transferTo(WritableByteChannel target) throws IOException {
+            if (closed) {
+                throw new RuntimeException("the stream is closed");
+            }
+            long transferred = 0;
+            ByteBuffer window = null;
+            for (;;) {
+                int av = available();
+                if (av == 0) {
+                    av = makeAvailable();
+                    if (av == 0) {
+                        break;
+                    }
+                }
+                if (window == null || window.array() != buffer) {
+                    window = ByteBuffer.wrap(buffer);
+                }
+                window.limit(head + av).position(head);
+                while (window.hasRemaining()) {
+                    target.write(window);
+                }
+                head += av;
+                total += av;
+                transferred += av;
+            }
+            return transferred;
+        }
+
         /**
          * 关闭流,将跳过当前Stremd的所有字节,直至下一个boundary
          *
@@ -567,6 +1184,20 @@ class MultipartStream {
             if (closed) {
                 return;
             }
+            skipRemaining();
+        }
+
+        /**
+         * 跳过当前Stream的所有剩余字节并关闭流,只移动<code>head</code>,不复制数据
+         *
+         * @return 跳过的字节数
+         * @throws IOException An I/O error occurred.
+         */
+        long skipRemaining() throws IOException {
+            if (closed) {
+                return 0;
+            }
+            long skipped = 0;
             for (;;) {
                 int av = available();
                 if (av == 0) {
@@ -575,9 +1206,10 @@ class MultipartStream {
                         break;
                     }
                 }
-                skip(av);
+                skipped += skip(av);
             }
             closed = true;
+            return skipped;
         }
 
 
@@ -635,26 +1267,29 @@ class MultipartStream {
             if (pos != -1) {
                 return 0;
             }
+            //整体读入模式下不会再有更多数据
+            if (wholeBody) {
+                throw new RuntimeException("Stream ended unexpectedly");
+            }
 
             // 将pad位之后的数据移动到buffer开头
             total += tail - head - pad;
+            bufferOffset += tail - pad;
             System.arraycopy(buffer, tail - pad, buffer, 0, pad);
 
             // 将buffer填满
             head = 0;
             tail = pad;
+            growIfSaturated();
             //循环读取数据,直至将buffer填满,在此过程中,每次读取都将检索buffer中是否存在boundary,无论存在与否,都将即时返回可用数据量
             for (;;) {
-                int bytesRead = input.read(buffer, tail, bufSize - tail);
+                int bytesRead = readInput(buffer, tail, bufSize - tail);
                 if (bytesRead == -1) {
                     //理论上因为会对buffer不断进行检索,读到boundary时就会return 0,read方法将返回 -1,
                     //所以不会读到input末尾,如果运行到了这里,表示发生了错误.
                     final String msg = "Stream ended unexpectedly";
                     throw new RuntimeException(msg);
                 }
-                if (notifier != null) {
-                    notifier.noteBytesRead(bytesRead);
-                }
                 tail += bytesRead;
                 findSeparator();
                 //若buffer中的数据量小于keepRegion(boundaryLength),av将必定等于0,循环将继续,直至数据量大于或等于keepRegion(boundaryLength).
@@ -700,13 +1335,108 @@ class MultipartStream {
          */
         private int items;
 
+        /**
+         * 汇总所有请求的全局统计
+         */
+        private final UploadStatistics statistics = UploadStatistics.global();
+
+        /**
+         * 读取限制,为null时不限制
+         */
+        private ReadGuard guard;
+
+        /**
+         * 取消句柄,为null时不能取消
+         */
+        private UploadCancellation cancellation;
+
+        /**
+         * 带宽限制,为null时不限制
+         */
+        private BandwidthLimiter.Shaper shaper;
+
+        /**
+         * 清空计数与限制,用于复用
+         */
+        void reset() {
+            bytesRead = 0;
+            items = 0;
+            guard = null;
+            cancellation = null;
+            shaper = null;
+        }
+
+        /**
+         * @param shaper 带宽限制,为null时不限制
+         */
+        void setShaper(BandwidthLimiter.Shaper shaper) {
+            this.shaper = shaper;
+        }
+
+        /**
+         * @param len 希望读取的字节数
+         * @return 受带宽限制时本次允许读取的字节数
+         */
+        int limitRead(int len) {
+            return shaper == null ? len : shaper.limit(len);
+        }
+
+        /**
+         * @param guard 读取限制,为null时不限制
+         */
+        void setGuard(ReadGuard guard) {
+            this.guard = guard;
+        }
+
+        /**
+         * @param cancellation 取消句柄,为null时不能取消
+         */
+        void setCancellation(UploadCancellation cancellation) {
+            this.cancellation = cancellation;
+        }
+
+        /**
+         * 每次从输入流读取之前调用
+         *
+         * @throws UploadCancelledException 已被取消
+         */
+        void checkpoint() throws UploadCancelledException {
+            if (cancellation != null) {
+                cancellation.checkpoint();
+            }
+        }
+
         /**
          * 改变已读取总字节数
          *
          * @param pBytes 读取字节数
+         * @throws SlowClientException 违反了读取限制
+         * @throws InterruptedIOException 等待带宽时被中断
          */
-        void noteBytesRead(int pBytes) {
+        void noteBytesRead(int pBytes) throws IOException {
             bytesRead += pBytes;
+            statistics.noteBytesRead(pBytes);
+            if (guard != null) {
+                guard.onRead(pBytes);
+            }
+            if (shaper != null) {
+                shaper.consume(pBytes);
+            }
+        }
+
+        /**
+         * 读取失败或读到末尾时调用,若是因为违反读取限制或被取消而关闭了输入流,抛出对应的异常
+         *
+         * @param cause 读取失败的原因,读到末尾时为null
+         * @throws UploadException 违反了读取限制或已被取消
+         */
+        void checkAborted(IOException cause) throws UploadException {
+            if (guard != null) {
+                guard.checkAborted(cause);
+            }
+            if (cancellation != null) {
+                cancellation.checkAborted(cause);
+            }
         }
 
         /**
@@ -714,6 +1444,35 @@ class MultipartStream {
          */
         void noteItem() {
             ++items;
+            statistics.notePart();
+        }
+
+        /**
+         * @param pBytes 读取的 <code>header-part</code> 字节数
+         */
+        void noteHeaderBytes(long pBytes) {
+            statistics.noteHeaderBytes(pBytes);
+        }
+
+        /**
+         * @param pBytes 因不需要而跳过的body字节数
+         */
+        void noteSkippedBytes(long pBytes) {
+            statistics.noteSkippedBytes(pBytes);
+        }
+
+        /**
+         * @return 已读取总字节数
+         */
+        long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return 已发现的总条目数
+         */
+        int getItems() {
+            return items;
         }
 
     }
@@ -0,0 +1,332 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>并行解析已落盘的大型请求体
+ *
+ * <p>将文件按 {@link #setSplitSize(long)} 切分为多个区域,在 {@link ForkJoinPool} 中并行查找分界线.
+ * 每个区域向后多映射分界线长度减一个字节,因此跨越切分点的分界线也能被找到,且只会被起始位置所在的区域报告.
+ * 之后按顺序解析每个条目的header,条目内容是文件映射的只读切片,不复制任何数据.
+ *
+ * <p>与 {@link Upload} 不同,multipart/mixed 条目不会被展开,其内容将作为一个整体返回.
+ * 单个条目不能超过 {@link Integer#MAX_VALUE} 字节.
+ */
+public class ParallelMappedParser {
+
+    private static final byte CR = 0x0D;
+
+    private static final byte LF = 0x0A;
+
+    private static final byte DASH = 0x2D;
+
+    /**
+     * header-part最大长度
+     */
+    private static final int HEADER_PART_SIZE_MAX = 10240;
+
+    /**
+     * 默认的切分大小
+     */
+    private static final long DEFAULT_SPLIT_SIZE = 32L * 1024 * 1024;
+
+    /**
+     * 为条目切片而映射的窗口大小,位于同一窗口中的条目共享一次映射
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+
+    private String headerEncoding = "UTF-8";
+
+    /**
+     * @param pool 查找分界线使用的线程池,默认为 {@link ForkJoinPool#commonPool()}
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param splitSize 单个任务扫描的最大字节数,默认为32MB
+     */
+    public void setSplitSize(long splitSize) {
+        if (splitSize <= 0) {
+            throw new IllegalArgumentException("splitSize must be positive");
+        }
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * @param headerEncoding 读取header以及解码表单域时使用的编码,默认为UTF-8
+     */
+    public void setHeaderEncoding(String headerEncoding) {
+        this.headerEncoding = headerEncoding;
+    }
+
+    /**
+     * 解析落盘的请求体
+     *
+     * @param body        落盘的请求体
+     * @param contentType 请求的contentType,包含boundary
+     * @return 按原始顺序排列的条目,内容为文件映射的切片
+     * @throws IOException 如果请求体格式错误
+     */
+    public List<Part> parse(File body, String contentType) throws IOException {
+        byte[] boundary = ItemIterator.getBoundary(contentType);
+        //分界线前面的CRLF--
+        byte[] delimiter = new byte[boundary.length + 4];
+        delimiter[0] = CR;
+        delimiter[1] = LF;
+        delimiter[2] = DASH;
+        delimiter[3] = DASH;
+        System.arraycopy(boundary, 0, delimiter, 4, boundary.length);
+
+        Charset charset = Charsets.forName(headerEncoding);
+        RandomAccessFile file = new RandomAccessFile(body, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long[] delimiters;
+            try {
+                delimiters = pool.invoke(new BoundaryScan(channel, size, delimiter, 0, size, splitSize));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return parts(channel, size, delimiter, delimiters, charset);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 按顺序解析每个分界线之后的条目
+     */
+    private List<Part> parts(FileChannel channel, long size, byte[] delimiter,
+                             long[] delimiters, Charset charset) throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        Window window = new Window(channel, size);
+        int first = 0;
+        long current;
+        //第一个分界线前面没有回车换行符
+        if (startsWithDashBoundary(channel, delimiter)) {
+            current = -2;
+        } else if (delimiters.length > 0) {
+            current = delimiters[first++];
+        } else {
+            throw new IOException("No boundary found in request body");
+        }
+        for (int i = first; ; i++) {
+            long after = current + delimiter.length;
+            byte[] marker = read(channel, after, 2);
+            if (marker.length == 2 && marker[0] == DASH && marker[1] == DASH) {
+                return parts;
+            }
+            if (marker.length < 2 || marker[0] != CR || marker[1] != LF) {
+                throw new IOException("Unexpected characters follow a boundary at offset " + after);
+            }
+            if (i >= delimiters.length) {
+                throw new IOException("Stream ended unexpectedly");
+            }
+            long partStart = after + 2;
+            long next = delimiters[i];
+            byte[] headerBytes = read(channel, partStart - 2,
+                    (int) Math.min(HEADER_PART_SIZE_MAX + 2, next - partStart + 2));
+            int headerEnd = indexOfHeaderSeparator(headerBytes);
+            if (headerEnd == -1) {
+                throw new IOException("Header section is not properly terminated at offset " + partStart);
+            }
+            HeaderContext headers = ItemIterator.getParsedHeaders(
+                    new String(headerBytes, 2, headerEnd + 2, charset));
+            long bodyStart = partStart - 2 + headerEnd + 4;
+            String fieldName = ItemIterator.getFieldName(headers);
+            if (fieldName != null) {
+                parts.add(new BufferPart(fieldName, ItemIterator.getFileName(headers),
+                        window.slice(bodyStart, next - bodyStart), charset, null));
+            }
+            current = next;
+        }
+    }
+
+    private static boolean startsWithDashBoundary(FileChannel channel, byte[] delimiter) throws IOException {
+        byte[] head = read(channel, 0, delimiter.length - 2);
+        if (head.length != delimiter.length - 2) {
+            return false;
+        }
+        for (int i = 0; i < head.length; i++) {
+            if (head[i] != delimiter[i + 2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return CRLFCRLF在数组中的起始位置,未找到返回-1
+     */
+    private static int indexOfHeaderSeparator(byte[] bytes) {
+        for (int i = 0; i + 3 < bytes.length; i++) {
+            if (bytes[i] == CR && bytes[i + 1] == LF && bytes[i + 2] == CR && bytes[i + 3] == LF) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从指定位置读取最多 <code>length</code> 个字节,到达文件末尾时返回的数组会更短
+     */
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n == -1) {
+                break;
+            }
+        }
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 查找一个区域内所有分界线的起始位置
+     */
+    private static class BoundaryScan extends RecursiveTask<long[]> {
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private final byte[] delimiter;
+
+        private final long from;
+
+        private final long to;
+
+        private final long splitSize;
+
+        BoundaryScan(FileChannel channel, long size, byte[] delimiter, long from, long to, long splitSize) {
+            this.channel = channel;
+            this.size = size;
+            this.delimiter = delimiter;
+            this.from = from;
+            this.to = to;
+            this.splitSize = splitSize;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= splitSize) {
+                try {
+                    return scan();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long middle = from + (to - from) / 2;
+            BoundaryScan left = new BoundaryScan(channel, size, delimiter, from, middle, splitSize);
+            BoundaryScan right = new BoundaryScan(channel, size, delimiter, middle, to, splitSize);
+            right.fork();
+            long[] l = left.compute();
+            long[] r = right.join();
+            long[] merged = new long[l.length + r.length];
+            System.arraycopy(l, 0, merged, 0, l.length);
+            System.arraycopy(r, 0, merged, l.length, r.length);
+            return merged;
+        }
+
+        /**
+         * 映射 [from, to + 分界线长度 - 1) 并查找起始位置位于 [from, to) 的分界线
+         */
+        private long[] scan() throws IOException {
+            long end = Math.min(size, to + delimiter.length - 1);
+            if (end - from < delimiter.length) {
+                return new long[0];
+            }
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, from, end - from);
+            int limit = (int) Math.min(to - from, end - from - delimiter.length + 1);
+            long[] found = new long[8];
+            int count = 0;
+            int[] table = MultipartStream.partialMatchTable(delimiter, delimiter.length, null);
+            int match = 0;
+            //部分匹配失败时按部分匹配表回退,每个字节只被检查常数次
+            for (int i = 0, n = (int) (end - from); i < n; i++) {
+                //起始位置超出本段的分界线由下一段负责
+                if (i - match >= limit) {
+                    break;
+                }
+                byte c = region.get(i);
+                while (match > 0 && c != delimiter[match]) {
+                    match = table[match - 1];
+                }
+                if (c != delimiter[match]) {
+                    continue;
+                }
+                if (++match < delimiter.length) {
+                    continue;
+                }
+                if (count == found.length) {
+                    long[] grown = new long[count * 2];
+                    System.arraycopy(found, 0, grown, 0, count);
+                    found = grown;
+                }
+                found[count++] = from + i - delimiter.length + 1;
+                match = 0;
+            }
+            long[] result = new long[count];
+            System.arraycopy(found, 0, result, 0, count);
+            return result;
+        }
+    }
+
+    /**
+     * 条目切片所在的映射窗口,位于同一窗口中的条目共享一次映射
+     */
+    private static class Window {
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private MappedByteBuffer mapped;
+
+        private long start;
+
+        Window(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        ByteBuffer slice(long position, long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Part at offset " + position + " is too large to be mapped: " + length);
+            }
+            if (mapped == null || position < start || position + length > start + mapped.capacity()) {
+                start = position;
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.max(length, Math.min(WINDOW_SIZE, size - start)));
+            }
+            int offset = (int) (position - start);
+            //ByteBuffer.slice(int, int)要求JDK 13
+            ByteBuffer slice = mapped.duplicate();
+            slice.position(offset).limit(offset + (int) length);
+            return slice.slice();
+        }
+    }
+}
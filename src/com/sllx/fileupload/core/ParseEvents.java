@@ -0,0 +1,106 @@
+package com.sllx.fileupload.core;
+
+import jdk.jfr.*;
+
+/**
+ * <p>解析过程的 JDK Flight Recorder 事件
+ *
+ * <p>事件默认关闭,未启用时 <code>begin()</code>/<code>shouldCommit()</code> 几乎没有开销,
+ * 可以在运行中通过JFR设置打开,例如:
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start settings=profile +com.sllx.fileupload.Refill#enabled=true
+ * </pre>
+ */
+final class ParseEvents {
+
+    private static final String CATEGORY = "HTTP Multipart";
+
+    private ParseEvents() {
+    }
+
+    /**
+     * 一次 {@link Upload#parseRequest(javax.servlet.http.HttpServletRequest)} 的全过程
+     */
+    @Name("com.sllx.fileupload.RequestParse")
+    @Label("Multipart Request Parse")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class Request extends Event {
+
+        @Label("Content Type")
+        String contentType;
+
+        @Label("Content Length")
+        @DataAmount
+        long contentLength;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Parts")
+        int parts;
+    }
+
+    /**
+     * 一个条目从header之后到body读取完毕的过程,包含查找分界线与复制的时间
+     */
+    @Name("com.sllx.fileupload.PartParse")
+    @Label("Multipart Part Parse")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class Part extends Event {
+
+        @Label("Part Index")
+        int partIndex;
+
+        @Label("Field Name")
+        String fieldName;
+
+        @Label("Content Type")
+        String contentType;
+
+        @Label("Body Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * 一个条目的 <code>header-part</code> 的读取与解析
+     */
+    @Name("com.sllx.fileupload.HeaderParse")
+    @Label("Multipart Header Parse")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class Header extends Event {
+
+        @Label("Part Index")
+        int partIndex;
+
+        @Label("Header Bytes")
+        @DataAmount
+        long headerBytes;
+    }
+
+    /**
+     * 一次对输入流的阻塞读取
+     */
+    @Name("com.sllx.fileupload.Refill")
+    @Label("Multipart Blocking Refill")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static class Refill extends Event {
+
+        @Label("Requested Bytes")
+        @DataAmount
+        int requested;
+
+        @Label("Bytes Read")
+        @DataAmount
+        int bytesRead;
+    }
+}
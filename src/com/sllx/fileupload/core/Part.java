@@ -2,11 +2,45 @@ package com.sllx.fileupload.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public interface Part {
+
+    /**
+     * 等同于 <code>write(file, Durability.NONE)</code>
+     */
     void write(File fIle) throws IOException;
+
+    /**
+     * 先写入同一目录下的临时文件,按 <code>durability</code> 落盘后原子重命名为 <code>file</code>,
+     * 失败时 <code>file</code> 保持原样
+     *
+     * @param file       目标文件,已存在时被替换
+     * @param durability 返回时对持久性的保证
+     * @throws IOException
+     */
+    void write(File file, Durability durability) throws IOException;
+
     String getField();
     String getFileName();
     boolean isFormField();
     String getValue();
+
+    /**
+     * @return 条目内容的只读视图,不复制底层数据时修改底层数据会反映到视图中
+     * @throws IOException
+     */
+    ByteBuffer getByteBuffer() throws IOException;
+
+    /**
+     * @return 读取条目内容的输入流,每次调用都从头开始读取
+     * @throws IOException
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * 释放条目占用的内存预算与临时文件,之后不能再读取内容
+     */
+    void delete();
 }
@@ -0,0 +1,287 @@
+package com.sllx.fileupload.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>{@link Part#write(File, Durability)} 的实现
+ *
+ * <p>内容通过 {@link FileChannel} 写入目标目录下的临时文件,按 {@link Durability} 落盘后原子重命名为目标文件,
+ * 失败时删除临时文件,目标文件保持不变.内容的长度总是已知的,内存中的内容以一次写入完成,
+ * 文件中的内容以 {@link FileChannel#transferTo} 复制
+ */
+final class PartFiles {
+
+    private static final GroupCommit GROUP_COMMIT = new GroupCommit();
+
+    private PartFiles() {
+    }
+
+    /**
+     * @param target     目标文件
+     * @param content    内容,写入后position位于limit
+     * @param durability 持久性
+     * @throws IOException
+     */
+    static void write(File target, final ByteBuffer content, Durability durability) throws IOException {
+        write(target, durability, new Content() {
+            @Override
+            public void writeTo(FileChannel channel) throws IOException {
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param source     源文件
+     * @param target     目标文件
+     * @param durability 持久性
+     * @throws IOException
+     */
+    static void copy(final File source, File target, Durability durability) throws IOException {
+        write(target, durability, new Content() {
+            @Override
+            public void writeTo(FileChannel channel) throws IOException {
+                FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                try {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, channel);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 只写入目标文件旁的临时文件,不重命名,用于需要在之后一起生效的多个文件
+     *
+     * @param target  目标文件
+     * @param content 内容
+     * @return 已写完并关闭的临时文件,失败时已被删除
+     * @throws IOException
+     */
+    static File writeTemp(File target, Content content) throws IOException {
+        File temp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getAbsoluteFile().getParentFile());
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+        boolean written = false;
+        try {
+            content.writeTo(channel);
+            channel.close();
+            written = true;
+            return temp;
+        } finally {
+            channel.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 将 {@link #writeTemp(File, Content)} 写入的临时文件原子重命名为目标文件
+     */
+    static void rename(File temp, File target) throws IOException {
+        move(temp, target);
+    }
+
+    private static void write(File target, Durability durability, Content content) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+        boolean committed = false;
+        try {
+            content.writeTo(channel);
+            switch (durability) {
+                case FSYNC:
+                    channel.force(false);
+                    channel.close();
+                    move(temp, target);
+                    syncDirectory(dir);
+                    break;
+                case GROUP_COMMIT:
+                    //各线程并行fsync自己的文件,只有重命名与目录的fsync合并
+                    channel.force(false);
+                    channel.close();
+                    GROUP_COMMIT.commit(new Commit(temp, target, dir));
+                    break;
+                default:
+                    channel.close();
+                    move(temp, target);
+            }
+            committed = true;
+        } finally {
+            channel.close();
+            if (!committed) {
+                //重命名之后临时文件已不存在
+                temp.delete();
+            }
+        }
+    }
+
+    private static void move(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 使目录中的重命名落盘,不能以读方式打开目录的平台(Windows)上什么都不做
+     */
+    private static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    interface Content {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * 一次等待组提交的写入,临时文件已fsync并关闭.除 {@link #done} 外的字段只被执行这一批的线程修改
+     */
+    private static class Commit {
+
+        final File temp;
+
+        final File target;
+
+        final File dir;
+
+        /**
+         * 所在的批次已执行完毕,由 {@link GroupCommit} 的锁保护
+         */
+        boolean done;
+
+        boolean committed;
+
+        IOException failure;
+
+        Commit(File temp, File target, File dir) {
+            this.temp = temp;
+            this.target = target;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * <p>组提交: 写入者各自fsync临时文件后加入队列,第一个到达的线程成为执行者,取走当时所有等待的写入,
+     * 依次重命名后每个目录只fsync一次.执行期间到达的写入组成下一批,由其中一个线程在这一批完成后执行
+     */
+    private static class GroupCommit {
+
+        private List<Commit> pending = new ArrayList<Commit>();
+
+        /**
+         * 是否有线程正在执行一批
+         */
+        private boolean running;
+
+        void commit(Commit commit) throws IOException {
+            List<Commit> batch;
+            synchronized (this) {
+                pending.add(commit);
+                boolean interrupted = false;
+                while (running && !commit.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        //执行者可能正在重命名该文件,必须等待结果
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (commit.done) {
+                    check(commit);
+                    return;
+                }
+                running = true;
+                batch = pending;
+                pending = new ArrayList<Commit>();
+            }
+            try {
+                run(batch);
+            } finally {
+                synchronized (this) {
+                    for (Commit c : batch) {
+                        c.done = true;
+                    }
+                    running = false;
+                    notifyAll();
+                }
+            }
+            check(commit);
+        }
+
+        private static void check(Commit commit) throws IOException {
+            if (commit.failure != null) {
+                throw new IOException(commit.failure.getMessage(), commit.failure);
+            }
+            if (!commit.committed) {
+                throw new IOException("Group commit failed for " + commit.target);
+            }
+        }
+
+        /**
+         * 依次重命名整批文件,再对涉及的每个目录只fsync一次
+         */
+        private static void run(List<Commit> batch) {
+            Map<File, List<Commit>> dirs = new LinkedHashMap<File, List<Commit>>();
+            for (Commit c : batch) {
+                try {
+                    move(c.temp, c.target);
+                } catch (IOException e) {
+                    c.failure = e;
+                    continue;
+                }
+                List<Commit> inDir = dirs.get(c.dir);
+                if (inDir == null) {
+                    inDir = new ArrayList<Commit>();
+                    dirs.put(c.dir, inDir);
+                }
+                inDir.add(c);
+            }
+            for (Map.Entry<File, List<Commit>> entry : dirs.entrySet()) {
+                IOException failure = null;
+                try {
+                    syncDirectory(entry.getKey());
+                } catch (IOException e) {
+                    failure = e;
+                }
+                for (Commit c : entry.getValue()) {
+                    c.failure = failure;
+                    c.committed = failure == null;
+                }
+            }
+        }
+    }
+}
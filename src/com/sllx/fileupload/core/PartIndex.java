@@ -0,0 +1,320 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Streams;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>已落盘请求体的条目偏移索引
+ *
+ * <p>{@link #build(File, String, String)} 对落盘的请求体做一次解析,记录每个条目的header范围,
+ * body偏移量,长度以及解析后的header,body部分只移动游标而不复制.索引可以通过 {@link #write(File)}
+ * 保存为紧凑的二进制附属文件,之后通过 {@link #read(File)} 读回,
+ * 再以 {@link #map(FileChannel, int)}, {@link #openStream(FileChannel, int)} 或
+ * {@link #transferTo(FileChannel, int, WritableByteChannel)} 直接定位到任意条目,不再需要扫描分界线.
+ */
+public class PartIndex {
+
+    /**
+     * 附属文件的魔数,"MPIX"
+     */
+    private static final int MAGIC = 0x4D504958;
+
+    /**
+     * 附属文件的格式版本
+     */
+    private static final short VERSION = 1;
+
+    private static final String DEFAULT_HEADER_ENCODING = "UTF-8";
+
+    /**
+     * 建立索引时请求体的长度,用于校验索引与请求体是否匹配
+     */
+    private final long bodyLength;
+
+    private final List<Entry> entries;
+
+    private PartIndex(long bodyLength, List<Entry> entries) {
+        this.bodyLength = bodyLength;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * 使用UTF-8读取header
+     * @see #build(File, String, String)
+     */
+    public static PartIndex build(File body, String contentType) throws IOException {
+        return build(body, contentType, DEFAULT_HEADER_ENCODING);
+    }
+
+    /**
+     * 解析落盘的请求体并建立索引
+     *
+     * @param body           落盘的请求体
+     * @param contentType    请求的contentType,包含boundary
+     * @param headerEncoding 读取header时使用的编码
+     * @return 索引
+     * @throws IOException
+     */
+    public static PartIndex build(File body, String contentType, String headerEncoding) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        InputStream input = new FileInputStream(body);
+        try {
+            ItemIterator iter = new ItemIterator(contentType, input, headerEncoding);
+            while (iter.hasNext()) {
+                Item item = iter.next();
+                long headerOffset = iter.headerOffset();
+                long bodyOffset = iter.bodyOffset();
+                //关闭时只移动游标跳过body,停在下一个分界线处
+                item.openStream().close();
+                entries.add(new Entry(item.getFieldName(), item.getFileName(), item.isFormField(), headerOffset,
+                        (int) (bodyOffset - headerOffset), bodyOffset, iter.position() - bodyOffset,
+                        item.getHeaders()));
+            }
+        } finally {
+            input.close();
+        }
+        return new PartIndex(body.length(), entries);
+    }
+
+    /**
+     * 将索引写入附属文件
+     * @param sidecar 附属文件
+     * @throws IOException
+     */
+    public void write(File sidecar) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(bodyLength);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.headerOffset);
+                out.writeInt(entry.headerLength);
+                out.writeLong(entry.bodyOffset);
+                out.writeLong(entry.bodyLength);
+                //byteranges的条目没有字段名
+                out.writeBoolean(entry.fieldName != null);
+                if (entry.fieldName != null) {
+                    out.writeUTF(entry.fieldName);
+                }
+                out.writeBoolean(entry.formField);
+                out.writeBoolean(entry.fileName != null);
+                if (entry.fileName != null) {
+                    out.writeUTF(entry.fileName);
+                }
+                out.writeUTF(entry.headers.toHeaderPart());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 从附属文件读取索引
+     * @param sidecar 附属文件
+     * @return 索引
+     * @throws IOException 如果文件不是索引文件或版本不支持
+     */
+    public static PartIndex read(File sidecar) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a part index: " + sidecar);
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported part index version " + version);
+            }
+            long bodyLength = in.readLong();
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                long headerOffset = in.readLong();
+                int headerLength = in.readInt();
+                long bodyOffset = in.readLong();
+                long length = in.readLong();
+                String fieldName = in.readBoolean() ? in.readUTF() : null;
+                boolean formField = in.readBoolean();
+                String fileName = in.readBoolean() ? in.readUTF() : null;
+                HeaderContext headers = ItemIterator.getParsedHeaders(in.readUTF() + "\r\n");
+                entries.add(new Entry(fieldName, fileName, formField,
+                        headerOffset, headerLength, bodyOffset, length, headers));
+            }
+            return new PartIndex(bodyLength, entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return 条目数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param index 条目序号
+     * @return 条目信息
+     */
+    public Entry get(int index) {
+        return entries.get(index);
+    }
+
+    /**
+     * @return 按原始顺序排列的所有条目
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * 将条目的body只读映射到内存
+     *
+     * @param body  建立索引时的请求体
+     * @param index 条目序号
+     * @return body区域的映射
+     * @throws IOException 如果请求体与索引不匹配
+     */
+    public MappedByteBuffer map(FileChannel body, int index) throws IOException {
+        Entry entry = checked(body, index);
+        return body.map(FileChannel.MapMode.READ_ONLY, entry.bodyOffset, entry.bodyLength);
+    }
+
+    /**
+     * 以定位读取的方式打开条目的body,不改变 <code>body</code> 的position
+     *
+     * @param body  建立索引时的请求体
+     * @param index 条目序号
+     * @return 只能读取该条目body的输入流
+     * @throws IOException 如果请求体与索引不匹配
+     */
+    public InputStream openStream(FileChannel body, int index) throws IOException {
+        Entry entry = checked(body, index);
+        return Streams.newInputStream(body, entry.bodyOffset, entry.bodyLength);
+    }
+
+    /**
+     * 将条目的body通过 {@link FileChannel#transferTo(long, long, WritableByteChannel)} 写入目标
+     *
+     * @param body   建立索引时的请求体
+     * @param index  条目序号
+     * @param target 写入的目标
+     * @return 写入的字节数
+     * @throws IOException 如果请求体与索引不匹配
+     */
+    public long transferTo(FileChannel body, int index, WritableByteChannel target) throws IOException {
+        Entry entry = checked(body, index);
+        long position = entry.bodyOffset;
+        long end = entry.bodyOffset + entry.bodyLength;
+        while (position < end) {
+            long n = body.transferTo(position, end - position, target);
+            if (n <= 0) {
+                throw new EOFException("Request body ended inside part " + index);
+            }
+            position += n;
+        }
+        return entry.bodyLength;
+    }
+
+    private Entry checked(FileChannel body, int index) throws IOException {
+        if (body.size() != bodyLength) {
+            throw new IOException(String.format("Request body has %s bytes, but the index was built for %s bytes",
+                    Long.valueOf(body.size()), Long.valueOf(bodyLength)));
+        }
+        return entries.get(index);
+    }
+
+    /**
+     * 单个条目的索引信息
+     */
+    public static class Entry {
+
+        private final String fieldName;
+
+        private final String fileName;
+
+        /**
+         * 与 {@link Item#isFormField()} 一致,byteranges的条目没有文件名但不是表单域
+         */
+        private final boolean formField;
+
+        /**
+         * <code>header-part</code> 的起始偏移量
+         */
+        private final long headerOffset;
+
+        /**
+         * <code>header-part</code> 的长度,包含结尾的空行
+         */
+        private final int headerLength;
+
+        /**
+         * <code>body-data</code> 的起始偏移量
+         */
+        private final long bodyOffset;
+
+        /**
+         * <code>body-data</code> 的长度
+         */
+        private final long bodyLength;
+
+        private final HeaderContext headers;
+
+        Entry(String fieldName, String fileName, boolean formField, long headerOffset, int headerLength,
+              long bodyOffset, long bodyLength, HeaderContext headers) {
+            this.fieldName = fieldName;
+            this.fileName = fileName;
+            this.formField = formField;
+            this.headerOffset = headerOffset;
+            this.headerLength = headerLength;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.headers = headers;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isFormField() {
+            return formField;
+        }
+
+        public String getContentType() {
+            return headers.getHeader("Content-type");
+        }
+
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        public int getHeaderLength() {
+            return headerLength;
+        }
+
+        public long getBodyOffset() {
+            return bodyOffset;
+        }
+
+        public long getBodyLength() {
+            return bodyLength;
+        }
+
+        public HeaderContext getHeaders() {
+            return headers;
+        }
+    }
+}
@@ -1,33 +1,134 @@
 package com.sllx.fileupload.core;
 
-import com.sllx.fileupload.util.Streams;
+import com.sllx.fileupload.util.Charsets;
 
 import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 
 class PartStream implements Part{
 
-    private ByteArrayOutputStream stream;
+    /**
+     * 未调用{@link #delete()}就被回收的条目由它归还预算并删除临时文件
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * 每次从输入流读取并预留的字节数
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private BufferStream stream;
     private String fieldName;
     private String fileName;
     private boolean isFormField;
-    private String characterEncoding;
+    private Charset charset;
 
-    PartStream(String fieldName, InputStream input, String fileName, String encoding) throws IOException {
-        stream = new ByteArrayOutputStream();
-        //ByteArrayOutputStream#close() 什么都不做
-        Streams.copy(input, stream, false);
+    /**
+     * 预算不足时写入的临时文件,未写入磁盘时为null
+     */
+    private File file;
+
+    /**
+     * 需要释放的资源
+     */
+    private final Resources resources;
+
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * 解码后的值,首次调用{@link #getValue()}时生成
+     */
+    private String value;
+
+    PartStream(String fieldName, InputStream input, String fileName, Charset charset) throws IOException {
+        this(fieldName, input, fileName, charset, null, null);
+    }
+
+    /**
+     * @param budget     内存预算,为null时不限制
+     * @param repository 预算不足时临时文件所在的目录,为null时使用系统临时目录
+     */
+    PartStream(String fieldName, InputStream input, String fileName, Charset charset,
+               MemoryBudget budget, File repository) throws IOException {
         this.fieldName = fieldName;
         this.fileName = fileName;
         this.isFormField = fileName == null;
-        this.characterEncoding = encoding;
+        this.charset = charset;
+        this.resources = new Resources(budget);
+        this.cleanable = CLEANER.register(this, resources);
+        stream = new BufferStream();
+        try {
+            copy(input, budget, repository);
+        } catch (IOException e) {
+            delete();
+            throw e;
+        } catch (RuntimeException e) {
+            delete();
+            throw e;
+        }
+    }
+
+    /**
+     * 逐块读取输入流,每一块都先从预算中预留,预算不足且策略为{@link BudgetPolicy#SPILL}时转为写入临时文件
+     */
+    private void copy(InputStream input, MemoryBudget budget, File repository) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        //ByteArrayOutputStream#close() 什么都不做
+        OutputStream out = stream;
+        try {
+            for (;;) {
+                int n = input.read(chunk);
+                if (n == -1) {
+                    break;
+                }
+                if (file == null && budget != null) {
+                    if (budget.reserve(n)) {
+                        resources.reserve(n);
+                    } else {
+                        out = spill(repository);
+                    }
+                }
+                out.write(chunk, 0, n);
+            }
+        } finally {
+            if (out != stream) {
+                out.close();
+            }
+            input.close();
+        }
+    }
+
+    /**
+     * 将已缓存的内容写入临时文件并归还预算
+     *
+     * @return 临时文件的输出流
+     */
+    private OutputStream spill(File repository) throws IOException {
+        file = File.createTempFile("upload_", ".tmp", repository);
+        resources.spilled(file);
+        OutputStream out = new FileOutputStream(file);
+        stream.writeTo(out);
+        stream = null;
+        resources.release();
+        return out;
     }
 
     @Override
     public void write(File file) throws IOException{
-        FileOutputStream fos = new FileOutputStream(file);
-        stream.writeTo(fos);
-        stream.close();
-        fos.close();
+        write(file, Durability.NONE);
+    }
+
+    @Override
+    public void write(File file, Durability durability) throws IOException {
+        checkNotDeleted();
+        if (this.file != null) {
+            PartFiles.copy(this.file, file, durability);
+            return;
+        }
+        PartFiles.write(file, stream.view(), durability);
     }
 
     @Override
@@ -47,17 +148,121 @@ class PartStream implements Part{
 
     @Override
     public String getValue() {
-        String value = null;
-        if(characterEncoding != null){
-            try {
-                value = stream.toString(characterEncoding);
-            } catch (UnsupportedEncodingException e) {
-                //若平台不知道指定的编码,将使用默认值
-                value = stream.toString();
+        if (value == null) {
+            checkNotDeleted();
+            if (file != null) {
+                try {
+                    value = Charsets.decode(getByteBuffer(), charset);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                value = stream.decode(charset);
             }
-        } else {
-            value = stream.toString();
         }
         return value;
     }
+
+    /**
+     * @return 内存中的内容或临时文件的只读映射
+     */
+    @Override
+    public ByteBuffer getByteBuffer() throws IOException {
+        checkNotDeleted();
+        if (file != null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        }
+        return stream.view();
+    }
+
+    /**
+     * @return 内存中的内容或临时文件的输入流
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkNotDeleted();
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return stream.inputStream();
+    }
+
+    /**
+     * 归还占用的内存预算并删除临时文件,之后不能再读取内容
+     */
+    @Override
+    public void delete() {
+        stream = null;
+        file = null;
+        cleanable.clean();
+    }
+
+    private void checkNotDeleted() {
+        if (stream == null && file == null) {
+            throw new IllegalStateException("the part has been deleted");
+        }
+    }
+
+    /**
+     * 可以直接解码内部数组的{@link ByteArrayOutputStream},避免{@link #toByteArray()}的复制
+     */
+    private static class BufferStream extends ByteArrayOutputStream {
+
+        String decode(Charset charset) {
+            return Charsets.decode(buf, 0, count, charset);
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer();
+        }
+
+        InputStream inputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * 条目占用的预算与临时文件,不能引用条目本身,否则条目永远不会被回收
+     */
+    private static class Resources implements Runnable {
+
+        private final MemoryBudget budget;
+
+        private long reserved;
+
+        private File file;
+
+        Resources(MemoryBudget budget) {
+            this.budget = budget;
+        }
+
+        synchronized void reserve(long bytes) {
+            reserved += bytes;
+        }
+
+        synchronized void spilled(File file) {
+            this.file = file;
+        }
+
+        synchronized void release() {
+            if (budget != null) {
+                budget.release(reserved);
+            }
+            reserved = 0;
+        }
+
+        @Override
+        public synchronized void run() {
+            release();
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,402 @@
+package com.sllx.fileupload.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>将一个条目同时写入多个 {@link OutputStream},每个输出在各自的线程中写入
+ *
+ * <p>调用线程从条目中按块读取数据,放入一个由若干块组成的环中,每个输出都从环中依次取得同一块数据,
+ * 因此条目只被读取一次,每个字节也只从内存中复制一次.所有输出都写完一块之后这一块才能被重用,
+ * 所以最慢的输出决定了读取的速度,占用的内存只有环本身.环在多次调用之间复用.
+ *
+ * <p>一个输出写入失败时只有它被停止,其余输出继续写入,失败原因可以通过 {@link Result#getFailure(int)} 取得.
+ * 读取条目失败时所有输出都被停止.
+ */
+public class PartTee {
+
+    /**
+     * 默认的环大小(块数)
+     */
+    public static final int DEFAULT_RING_SIZE = 8;
+
+    /**
+     * 默认的块大小
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /**
+     * 运行输出的线程池,为null时每个输出使用一个新线程
+     */
+    private final Executor executor;
+
+    private final int ringSize;
+
+    private final int chunkSize;
+
+    /**
+     * 空闲的环
+     */
+    private final ConcurrentLinkedQueue<byte[][]> pool = new ConcurrentLinkedQueue<byte[][]>();
+
+    public PartTee() {
+        this(null, DEFAULT_RING_SIZE, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param executor  运行输出的线程池,必须能同时运行一次调用的所有输出,否则读取将永远等待;
+     *                  为null时每个输出使用一个新线程
+     * @param ringSize  环中的块数
+     * @param chunkSize 块大小
+     */
+    public PartTee(Executor executor, int ringSize, int chunkSize) {
+        if (ringSize <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid ring of %s chunks of %s bytes",
+                    Integer.valueOf(ringSize), Integer.valueOf(chunkSize)));
+        }
+        this.executor = executor;
+        this.ringSize = ringSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 将条目的body写入所有输出
+     *
+     * @see #tee(InputStream, OutputStream...)
+     */
+    public Result tee(Item item, OutputStream... sinks) throws IOException {
+        return tee(item.openStream(), sinks);
+    }
+
+    /**
+     * <p>读取 <code>input</code> 直至结束,同时写入所有输出,所有输出都结束后返回.
+     * 每个输出在写完后或失败时被关闭,<code>input</code> 不会被关闭
+     *
+     * @param input 数据
+     * @param sinks 输出
+     * @return 读取的字节数与各输出的结果
+     * @throws IOException 读取 <code>input</code> 失败
+     */
+    public Result tee(InputStream input, OutputStream... sinks) throws IOException {
+        byte[][] slots = pool.poll();
+        if (slots == null) {
+            slots = new byte[ringSize][chunkSize];
+        }
+        Ring ring = new Ring(slots, sinks.length);
+        Result result = new Result(sinks.length);
+        boolean reusable = false;
+        try {
+            for (int i = 0; i < sinks.length; i++) {
+                ring.starting();
+                try {
+                    start(new SinkTask(ring, i, sinks[i], result), i);
+                } catch (RuntimeException e) {
+                    ring.exited();
+                    throw e;
+                }
+            }
+            result.bytes = ring.produce(input);
+            ring.awaitSinks();
+            reusable = true;
+        } catch (IOException e) {
+            reusable = ring.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            reusable = ring.abort();
+            throw e;
+        } finally {
+            //仍有输出在读取环时不能归还
+            if (reusable) {
+                pool.offer(slots);
+            }
+        }
+        return result;
+    }
+
+    private void start(Runnable task, int index) {
+        if (executor != null) {
+            executor.execute(task);
+            return;
+        }
+        Thread thread = new Thread(task, "part-tee-sink-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * <p>环的状态,所有字段都由 <code>this</code> 保护
+     *
+     * <p>第 <code>n</code> 块位于 <code>slots[n % slots.length]</code>,读取线程只在所有存活的输出都取走
+     * 第 <code>n - slots.length</code> 块之后才写入第 <code>n</code> 块,写入与输出都在锁外进行
+     */
+    private static class Ring {
+
+        private final byte[][] slots;
+
+        private final int[] lengths;
+
+        /**
+         * 已放入环中的块数
+         */
+        private long published;
+
+        /**
+         * 每个输出已写完的块数
+         */
+        private final long[] consumed;
+
+        /**
+         * 每个输出是否仍在写入
+         */
+        private final boolean[] live;
+
+        private int liveCount;
+
+        /**
+         * 尚未退出的输出线程数
+         */
+        private int running;
+
+        /**
+         * 读取完毕
+         */
+        private boolean finished;
+
+        /**
+         * 读取失败,所有输出都应立即停止
+         */
+        private boolean aborted;
+
+        Ring(byte[][] slots, int sinks) {
+            this.slots = slots;
+            this.lengths = new int[slots.length];
+            this.consumed = new long[sinks];
+            this.live = new boolean[sinks];
+            Arrays.fill(live, true);
+            this.liveCount = sinks;
+        }
+
+        /**
+         * 读取线程: 按块读取数据放入环中
+         *
+         * @return 读取的字节数
+         */
+        long produce(InputStream input) throws IOException {
+            long total = 0;
+            boolean eof = false;
+            while (!eof) {
+                byte[] slot;
+                synchronized (this) {
+                    while (liveCount > 0 && published - minConsumed() >= slots.length) {
+                        await();
+                    }
+                    if (liveCount == 0) {
+                        //所有输出都已失败,剩余数据留给调用者处理
+                        break;
+                    }
+                    slot = slots[(int) (published % slots.length)];
+                }
+                int len = 0;
+                while (len < slot.length) {
+                    int n = input.read(slot, len, slot.length - len);
+                    if (n == -1) {
+                        eof = true;
+                        break;
+                    }
+                    len += n;
+                }
+                if (len > 0) {
+                    synchronized (this) {
+                        lengths[(int) (published % slots.length)] = len;
+                        published++;
+                        notifyAll();
+                    }
+                    total += len;
+                }
+            }
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+            return total;
+        }
+
+        /**
+         * 输出线程: 取得第 <code>n</code> 块,没有更多数据时返回null
+         *
+         * @throws IOException 读取已中止
+         */
+        synchronized byte[] take(long n) throws IOException {
+            while (n == published && !finished && !aborted) {
+                await();
+            }
+            if (aborted) {
+                throw new IOException("Reading the part failed");
+            }
+            if (n == published) {
+                return null;
+            }
+            return slots[(int) (n % slots.length)];
+        }
+
+        synchronized int length(long n) {
+            return lengths[(int) (n % slots.length)];
+        }
+
+        synchronized void consumed(int sink, long count) {
+            consumed[sink] = count;
+            notifyAll();
+        }
+
+        synchronized void failed(int sink) {
+            if (live[sink]) {
+                live[sink] = false;
+                liveCount--;
+                notifyAll();
+            }
+        }
+
+        synchronized void starting() {
+            running++;
+        }
+
+        synchronized void exited() {
+            running--;
+            notifyAll();
+        }
+
+        synchronized void awaitSinks() throws InterruptedIOException {
+            while (running > 0) {
+                await();
+            }
+        }
+
+        /**
+         * 停止所有输出并等待它们退出
+         *
+         * @return 所有输出是否都已退出,即环是否可以重用
+         */
+        synchronized boolean abort() {
+            aborted = true;
+            notifyAll();
+            try {
+                awaitSinks();
+                return true;
+            } catch (InterruptedIOException e) {
+                return false;
+            }
+        }
+
+        private long minConsumed() {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < consumed.length; i++) {
+                if (live[i]) {
+                    min = Math.min(min, consumed[i]);
+                }
+            }
+            return min;
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the tee ring");
+            }
+        }
+    }
+
+    /**
+     * 将环中的块依次写入一个输出
+     */
+    private static class SinkTask implements Runnable {
+
+        private final Ring ring;
+
+        private final int index;
+
+        private final OutputStream out;
+
+        private final Result result;
+
+        SinkTask(Ring ring, int index, OutputStream out, Result result) {
+            this.ring = ring;
+            this.index = index;
+            this.out = out;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long n = 0;
+                for (;;) {
+                    byte[] slot = ring.take(n);
+                    if (slot == null) {
+                        break;
+                    }
+                    out.write(slot, 0, ring.length(n));
+                    ring.consumed(index, ++n);
+                }
+                out.close();
+            } catch (Throwable e) {
+                result.failures[index] = e;
+                ring.failed(index);
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    //已记录第一个异常
+                }
+            } finally {
+                ring.exited();
+            }
+        }
+    }
+
+    /**
+     * 一次 {@link #tee(InputStream, OutputStream...)} 的结果,在调用返回后读取
+     */
+    public static class Result {
+
+        private long bytes;
+
+        private final Throwable[] failures;
+
+        Result(int sinks) {
+            this.failures = new Throwable[sinks];
+        }
+
+        /**
+         * @return 读取的字节数
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @param sink 输出的下标
+         * @return 该输出失败的原因,成功时为null
+         */
+        public Throwable getFailure(int sink) {
+            return failures[sink];
+        }
+
+        /**
+         * @return 是否所有输出都写入成功
+         */
+        public boolean isSucceeded() {
+            for (Throwable failure : failures) {
+                if (failure != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
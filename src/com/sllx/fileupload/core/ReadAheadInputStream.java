@@ -0,0 +1,274 @@
+package com.sllx.fileupload.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>在后台线程中预先读取请求体的输入流
+ *
+ * <p>后台线程从原始输入流依次读入一个由若干块组成的环,解析线程从环中取得已读入的数据,
+ * 因此解析线程扫描与复制上一块时,下一块的读取已经在进行.环满时后台线程等待,占用的内存只有环本身.
+ *
+ * <p>后台线程最多读取请求声明的长度,不会读到属于下一个请求的数据.原始输入流被关闭(读取限制或取消)时
+ * 后台线程的读取失败,失败在解析线程下一次读取时抛出.
+ */
+class ReadAheadInputStream extends InputStream {
+
+    /**
+     * {@link #finish()} 等待后台线程退出的最长时间,超时后关闭原始输入流
+     */
+    private static final long FINISH_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final InputStream input;
+
+    private final byte[][] chunks;
+
+    private final int[] lengths;
+
+    /**
+     * 后台线程还可以读取的字节数
+     */
+    private long remaining;
+
+    /**
+     * 已放入环中的块数
+     */
+    private long produced;
+
+    /**
+     * 解析线程已读完的块数
+     */
+    private long consumed;
+
+    /**
+     * 解析线程在当前块中的位置,只被解析线程使用
+     */
+    private int position;
+
+    /**
+     * 后台线程已读到末尾
+     */
+    private boolean eof;
+
+    /**
+     * 后台线程读取失败的原因
+     */
+    private IOException failure;
+
+    /**
+     * 已关闭或已结束,后台线程应立即退出
+     */
+    private boolean closed;
+
+    /**
+     * 后台线程是否仍在运行
+     */
+    private boolean running;
+
+    /**
+     * @param input         原始输入流
+     * @param contentLength 请求声明的长度,后台线程不会读取超过该长度的数据
+     * @param depth         环中的块数
+     * @param chunkSize     块大小
+     */
+    ReadAheadInputStream(InputStream input, long contentLength, int depth, int chunkSize) {
+        this.input = input;
+        this.remaining = contentLength;
+        this.chunks = new byte[depth][chunkSize];
+        this.lengths = new int[depth];
+    }
+
+    /**
+     * 开始后台读取
+     *
+     * @param executor 运行后台读取的线程池,为null时使用一个新线程
+     */
+    void start(Executor executor) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        };
+        synchronized (this) {
+            running = true;
+        }
+        try {
+            if (executor != null) {
+                executor.execute(task);
+                return;
+            }
+            Thread thread = new Thread(task, "upload-read-ahead");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 后台线程: 依次读入环中的空闲块
+     */
+    private void produce() {
+        try {
+            for (;;) {
+                byte[] chunk;
+                synchronized (this) {
+                    while (!closed && produced - consumed >= chunks.length) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    chunk = chunks[(int) (produced % chunks.length)];
+                }
+                int n = remaining == 0 ? -1 : input.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                synchronized (this) {
+                    if (n == -1) {
+                        eof = true;
+                        notifyAll();
+                        return;
+                    }
+                    if (n > 0) {
+                        remaining -= n;
+                        lengths[(int) (produced % chunks.length)] = n;
+                        produced++;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Read-ahead was interrupted"));
+        } catch (RuntimeException e) {
+            fail(new IOException(e));
+        } finally {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * 复制所有已读入的块直至填满 <code>b</code>,只有环为空时才等待
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long available;
+        synchronized (this) {
+            while (produced == consumed && !eof && failure == null && !closed) {
+                await();
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (produced == consumed) {
+                if (failure != null) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                return -1;
+            }
+            available = produced;
+        }
+        //已发布的块不会被后台线程改写,复制在锁外进行
+        int copied = 0;
+        long next = consumed;
+        while (copied < len && next < available) {
+            int index = (int) (next % chunks.length);
+            int n = Math.min(lengths[index] - position, len - copied);
+            System.arraycopy(chunks[index], position, b, off + copied, n);
+            copied += n;
+            position += n;
+            if (position == lengths[index]) {
+                position = 0;
+                next++;
+            }
+        }
+        if (next != consumed) {
+            synchronized (this) {
+                consumed = next;
+                notifyAll();
+            }
+        }
+        return copied;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (produced == consumed) {
+            return 0;
+        }
+        return lengths[(int) (consumed % chunks.length)] - position;
+    }
+
+    /**
+     * 停止后台读取并关闭原始输入流
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        input.close();
+    }
+
+    /**
+     * <p>解析结束时调用,停止后台读取并等待后台线程退出,保证之后不再有其他线程读取原始输入流
+     *
+     * <p>后台线程通常已读到末尾.若它仍阻塞在读取中,等待超时后关闭原始输入流
+     */
+    void finish() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            long deadline = System.nanoTime() + FINISH_TIMEOUT_NANOS;
+            try {
+                while (running) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!running) {
+                return;
+            }
+        }
+        input.close();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        }
+    }
+}
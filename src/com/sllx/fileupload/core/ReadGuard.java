@@ -0,0 +1,232 @@
+package com.sllx.fileupload.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>一次解析的读取限制: 空闲时间、总时间与最低速度
+ *
+ * <p>每次从输入流读到数据后由 {@link MultipartStream.ProgressNotifier#noteBytesRead(int)} 检查.
+ * 阻塞在读取中的线程无法自己检查,因此还有一个共享的看门狗线程定期检查,违反限制时关闭输入流,
+ * 使阻塞的读取立即失败,之后的读取将抛出 {@link SlowClientException}
+ */
+class ReadGuard {
+
+    /**
+     * 看门狗检查间隔的上下限
+     */
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long MAX_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "upload-read-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * 违反限制时关闭的输入流
+     */
+    private final Closeable input;
+
+    /**
+     * 空闲时间上限,0表示不限制
+     */
+    private final long idleNanos;
+
+    /**
+     * 总时间上限,0表示不限制
+     */
+    private final long totalNanos;
+
+    /**
+     * 最低速度(字节/秒),0表示不限制
+     */
+    private final long minBytesPerSecond;
+
+    /**
+     * 速度的统计周期
+     */
+    private final long windowNanos;
+
+    private final long start;
+
+    /**
+     * 最近一次读到数据的时间
+     */
+    private volatile long lastProgress;
+
+    /**
+     * 当前统计周期的开始时间与已读取字节数,由 <code>this</code> 保护
+     */
+    private long windowStart;
+
+    private long windowBytes;
+
+    /**
+     * 已发现的违反,发现后不再改变
+     */
+    private volatile SlowClientException violation;
+
+    private volatile ScheduledFuture<?> task;
+
+    /**
+     * @param input             违反限制时关闭的输入流
+     * @param idleNanos         空闲时间上限,0表示不限制
+     * @param totalNanos        总时间上限,0表示不限制
+     * @param minBytesPerSecond 最低速度,0表示不限制
+     * @param windowNanos       速度的统计周期
+     */
+    ReadGuard(Closeable input, long idleNanos, long totalNanos, long minBytesPerSecond, long windowNanos) {
+        this.input = input;
+        this.idleNanos = idleNanos;
+        this.totalNanos = totalNanos;
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.windowNanos = windowNanos;
+        this.start = System.nanoTime();
+        this.lastProgress = start;
+        this.windowStart = start;
+    }
+
+    /**
+     * 开始由看门狗定期检查
+     */
+    void start() {
+        long tick = Long.MAX_VALUE;
+        if (idleNanos > 0) {
+            tick = Math.min(tick, idleNanos / 4);
+        }
+        if (totalNanos > 0) {
+            tick = Math.min(tick, totalNanos / 4);
+        }
+        if (minBytesPerSecond > 0) {
+            tick = Math.min(tick, windowNanos / 4);
+        }
+        tick = Math.max(MIN_TICK_NANOS, Math.min(tick, MAX_TICK_NANOS));
+        task = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (check(System.nanoTime()) != null) {
+                    abort();
+                }
+            }
+        }, tick, tick, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 停止检查,解析结束时必须调用
+     */
+    void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * 读到数据后调用
+     *
+     * @param bytes 读取的字节数
+     * @throws SlowClientException 违反了限制
+     */
+    void onRead(int bytes) throws SlowClientException {
+        long now = System.nanoTime();
+        lastProgress = now;
+        synchronized (this) {
+            windowBytes += bytes;
+        }
+        SlowClientException e = check(now);
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * 读取失败或读到末尾时调用,若是看门狗关闭了输入流导致的,抛出对应的异常
+     *
+     * @param cause 读取失败的原因,读到末尾时为null
+     * @throws SlowClientException 已违反了限制
+     */
+    void checkAborted(IOException cause) throws SlowClientException {
+        SlowClientException e = violation;
+        if (e != null) {
+            if (cause != null && e.getCause() == null) {
+                e.initCause(cause);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return 已发现或新发现的违反,没有时为null
+     */
+    private SlowClientException check(long now) {
+        SlowClientException e = violation;
+        if (e != null) {
+            return e;
+        }
+        if (totalNanos > 0 && now - start > totalNanos) {
+            e = new SlowClientException(SlowClientException.Reason.TOTAL_TIMEOUT, String.format(
+                    "Request body was not received within %s ms", Long.valueOf(toMillis(totalNanos))));
+        } else if (idleNanos > 0 && now - lastProgress > idleNanos) {
+            e = new SlowClientException(SlowClientException.Reason.IDLE_TIMEOUT, String.format(
+                    "No data received for %s ms", Long.valueOf(toMillis(now - lastProgress))));
+        } else if (minBytesPerSecond > 0) {
+            e = checkThroughput(now);
+        }
+        if (e != null) {
+            synchronized (this) {
+                if (violation == null) {
+                    violation = e;
+                }
+                return violation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 每个统计周期结束时比较该周期内的平均速度,周期内读到的数据只计入该周期
+     */
+    private synchronized SlowClientException checkThroughput(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < windowNanos) {
+            return null;
+        }
+        long rate = (long) (windowBytes * 1e9 / elapsed);
+        if (rate < minBytesPerSecond) {
+            return new SlowClientException(SlowClientException.Reason.THROUGHPUT, String.format(
+                    "Received %s bytes/s, the minimum is %s bytes/s",
+                    Long.valueOf(rate), Long.valueOf(minBytesPerSecond)));
+        }
+        windowStart = now;
+        windowBytes = 0;
+        return null;
+    }
+
+    /**
+     * 关闭输入流,使阻塞在读取中的线程立即返回
+     */
+    private void abort() {
+        stop();
+        try {
+            input.close();
+        } catch (IOException e) {
+            //读取线程仍会通过violation得知原因
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
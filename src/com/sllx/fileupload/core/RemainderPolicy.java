@@ -0,0 +1,17 @@
+package com.sllx.fileupload.core;
+
+/**
+ * 提前结束解析时,如何处理请求体中剩余未读的数据
+ */
+public enum RemainderPolicy {
+
+    /**
+     * 只移动游标读完剩余数据,不复制也不解析,连接可以继续复用
+     */
+    DRAIN,
+
+    /**
+     * 直接关闭输入流,通常会导致容器断开连接
+     */
+    CLOSE
+}
@@ -1,45 +1,114 @@
 package com.sllx.fileupload.core;
 
+import com.sun.net.httpserver.HttpExchange;
+
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import static java.lang.String.format;
 
-
-class RequestContext {
+/**
+ * <p>被解析的请求: contentType、编码、长度与请求体
+ *
+ * <p>通过 {@link #of(HttpServletRequest)}, {@link #of(HttpExchange)},
+ * {@link #of(InputStream, String, String, long)} 或 {@link #of(ReadableByteChannel, String, String, long)}
+ * 取得,也可以继承本类适配其他来源.以通道为来源时解析器直接通过通道读入解析缓冲,不经过流的包装
+ */
+public abstract class RequestContext {
 
     private static final String CONTENT_LENGTH = "Content-length";
 
+    private static final String CONTENT_TYPE = "Content-type";
+
     private static final String CHARACTER_ENCODING = "UTF-8";
 
-    private final HttpServletRequest request;
+    private static final String CHARSET = "charset=";
 
-    public RequestContext(HttpServletRequest request) {
-        this.request = request;
-    }
+    private InputStream input;
+
+    /**
+     * 请求体已被替换为预读流,不能再直接读取通道
+     */
+    private boolean readingAhead;
 
+    /**
+     * @return 请求的contentType,multipart请求包含boundary
+     */
+    public abstract String getContentType();
+
+    /**
+     * @return 请求声明的长度,未知时为-1
+     */
+    public abstract long contentLength();
+
+    /**
+     * 打开请求体,只被调用一次
+     *
+     * @return 请求体
+     * @throws IOException
+     */
+    protected abstract InputStream openInputStream() throws IOException;
+
+    /**
+     * 读取表单域与header时使用的编码,默认取contentType中的charset参数
+     *
+     * @return 编码,没有指定时为UTF-8
+     */
     public String getCharacterEncoding() {
-        String encoding = request.getCharacterEncoding();
+        String encoding = charsetOf(getContentType());
         return encoding == null ? CHARACTER_ENCODING : encoding;
     }
 
-    public String getContentType() {
-        return request.getContentType();
+    /**
+     * @return 请求体,多次调用返回同一个流
+     * @throws IOException
+     */
+    public final InputStream getInputStream() throws IOException {
+        if (input == null) {
+            input = openInputStream();
+        }
+        return input;
+    }
+
+    /**
+     * @return 与请求体对应的阻塞通道,没有或不能直接读取时为null
+     */
+    public final ReadableByteChannel getChannel() {
+        return readingAhead ? null : channel();
     }
 
-    public long contentLength() {
-        long size;
-        try {
-            size = Long.parseLong(request.getHeader(CONTENT_LENGTH));
-        } catch (NumberFormatException e) {
-            size = request.getContentLength();
-        }
-        return size;
+    /**
+     * 以通道为来源的子类覆盖该方法,通道与 {@link #openInputStream()} 必须读取同一份数据,且不能有各自的缓冲
+     *
+     * @return 与请求体对应的阻塞通道,默认为null
+     */
+    protected ReadableByteChannel channel() {
+        return null;
     }
 
-    public InputStream getInputStream() throws IOException {
-        return request.getInputStream();
+    /**
+     * 之后的 {@link #getInputStream()} 返回在后台预先读取请求体的流
+     *
+     * @param contentLength 请求声明的长度
+     * @param depth         环中的块数
+     * @param chunkSize     块大小
+     * @param executor      运行后台读取的线程池,为null时使用一个新线程
+     * @return 预读流,解析结束时必须调用 {@link ReadAheadInputStream#finish()}
+     * @throws IOException
+     */
+    ReadAheadInputStream readAhead(long contentLength, int depth, int chunkSize, Executor executor)
+            throws IOException {
+        ReadAheadInputStream readAhead = new ReadAheadInputStream(getInputStream(), contentLength, depth, chunkSize);
+        readAhead.start(executor);
+        input = readAhead;
+        readingAhead = true;
+        return readAhead;
     }
 
     @Override
@@ -47,4 +116,186 @@ class RequestContext {
         return format("ContentLength=%s, ContentType=%s",Long.valueOf(this.contentLength()),this.getContentType());
     }
 
+    /**
+     * @param request Servlet请求
+     * @return 读取该请求的上下文
+     */
+    public static RequestContext of(HttpServletRequest request) {
+        return new ServletRequestContext(request);
+    }
+
+    /**
+     * @param exchange {@link com.sun.net.httpserver.HttpServer} 收到的请求
+     * @return 读取该请求的上下文,分块传输的请求长度未知
+     */
+    public static RequestContext of(HttpExchange exchange) {
+        return new ExchangeRequestContext(exchange);
+    }
+
+    /**
+     * @param input             请求体,例如离线保存的请求
+     * @param contentType       contentType
+     * @param characterEncoding 编码,为null时取contentType中的charset参数
+     * @param contentLength     长度,未知时为-1
+     * @return 读取该请求体的上下文
+     */
+    public static RequestContext of(InputStream input, String contentType, String characterEncoding,
+                                    long contentLength) {
+        return new StreamRequestContext(input, contentType, characterEncoding, contentLength);
+    }
+
+    /**
+     * @param channel           请求体,必须处于阻塞模式
+     * @param contentType       contentType
+     * @param characterEncoding 编码,为null时取contentType中的charset参数
+     * @param contentLength     长度,未知时为-1
+     * @return 读取该请求体的上下文,解析器直接通过通道读入解析缓冲
+     * @throws IllegalArgumentException 通道处于非阻塞模式
+     */
+    public static RequestContext of(ReadableByteChannel channel, String contentType, String characterEncoding,
+                                    long contentLength) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalArgumentException("the channel must be in blocking mode");
+        }
+        return new ChannelRequestContext(channel, contentType, characterEncoding, contentLength);
+    }
+
+    /**
+     * @return contentType中charset参数的值,没有时为null
+     */
+    static String charsetOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int start = contentType.toLowerCase(Locale.ENGLISH).indexOf(CHARSET);
+        if (start == -1) {
+            return null;
+        }
+        start += CHARSET.length();
+        int end = contentType.indexOf(';', start);
+        String charset = (end == -1 ? contentType.substring(start) : contentType.substring(start, end)).trim();
+        if (charset.length() > 1 && charset.charAt(0) == '"' && charset.charAt(charset.length() - 1) == '"') {
+            charset = charset.substring(1, charset.length() - 1);
+        }
+        return charset.isEmpty() ? null : charset;
+    }
+
+    private static class ServletRequestContext extends RequestContext {
+
+        private final HttpServletRequest request;
+
+        ServletRequestContext(HttpServletRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            String encoding = request.getCharacterEncoding();
+            return encoding == null ? CHARACTER_ENCODING : encoding;
+        }
+
+        @Override
+        public String getContentType() {
+            return request.getContentType();
+        }
+
+        @Override
+        public long contentLength() {
+            long size;
+            try {
+                size = Long.parseLong(request.getHeader(CONTENT_LENGTH));
+            } catch (NumberFormatException e) {
+                size = request.getContentLength();
+            }
+            return size;
+        }
+
+        @Override
+        protected InputStream openInputStream() throws IOException {
+            return request.getInputStream();
+        }
+    }
+
+    private static class ExchangeRequestContext extends RequestContext {
+
+        private final HttpExchange exchange;
+
+        ExchangeRequestContext(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public String getContentType() {
+            return exchange.getRequestHeaders().getFirst(CONTENT_TYPE);
+        }
+
+        @Override
+        public long contentLength() {
+            try {
+                return Long.parseLong(exchange.getRequestHeaders().getFirst(CONTENT_LENGTH));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        protected InputStream openInputStream() {
+            return exchange.getRequestBody();
+        }
+    }
+
+    private static class StreamRequestContext extends RequestContext {
+
+        private final InputStream input;
+
+        private final String contentType;
+
+        private final String characterEncoding;
+
+        private final long contentLength;
+
+        StreamRequestContext(InputStream input, String contentType, String characterEncoding, long contentLength) {
+            this.input = input;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return characterEncoding != null ? characterEncoding : super.getCharacterEncoding();
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        protected InputStream openInputStream() {
+            return input;
+        }
+    }
+
+    private static class ChannelRequestContext extends StreamRequestContext {
+
+        private final ReadableByteChannel channel;
+
+        ChannelRequestContext(ReadableByteChannel channel, String contentType, String characterEncoding,
+                              long contentLength) {
+            //流只用于关闭与不经过解析缓冲的读取,关闭流即关闭通道
+            super(Channels.newInputStream(channel), contentType, characterEncoding, contentLength);
+            this.channel = channel;
+        }
+
+        @Override
+        protected ReadableByteChannel channel() {
+            return channel;
+        }
+    }
 }
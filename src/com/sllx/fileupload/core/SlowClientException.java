@@ -0,0 +1,43 @@
+package com.sllx.fileupload.core;
+
+/**
+ * 客户端发送请求体过慢,违反读取限制时抛出
+ *
+ * @see Upload#setIdleTimeout(long, java.util.concurrent.TimeUnit)
+ * @see Upload#setTotalTimeout(long, java.util.concurrent.TimeUnit)
+ * @see Upload#setMinThroughput(long, long, java.util.concurrent.TimeUnit)
+ */
+public class SlowClientException extends UploadException {
+
+    /**
+     * 违反的限制
+     */
+    public enum Reason {
+
+        /**
+         * 超过空闲时间没有读到任何数据
+         */
+        IDLE_TIMEOUT,
+
+        /**
+         * 超过整个请求允许的读取时间
+         */
+        TOTAL_TIMEOUT,
+
+        /**
+         * 一个统计周期内的平均速度低于下限
+         */
+        THROUGHPUT
+    }
+
+    private final Reason reason;
+
+    public SlowClientException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
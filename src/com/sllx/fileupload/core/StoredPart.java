@@ -0,0 +1,139 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Charsets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * 保存在 {@link ContentStore} 中的文件条目,内容位于存储中的共享对象
+ */
+public class StoredPart implements Part {
+
+    private final String fieldName;
+
+    private final String fileName;
+
+    private final ContentStore store;
+
+    private final ContentStore.Entry entry;
+
+    private final Charset charset;
+
+    /**
+     * 是否已归还引用
+     */
+    private boolean released;
+
+    StoredPart(String fieldName, String fileName, ContentStore store, ContentStore.Entry entry,
+               Charset charset) {
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.store = store;
+        this.entry = entry;
+        this.charset = charset;
+    }
+
+    /**
+     * @return 存储中的对象路径,所有相同内容的上传都指向这里,不应修改
+     */
+    public File getFile() {
+        return entry.getFile();
+    }
+
+    /**
+     * @return 内容的SHA-256,十六进制小写
+     */
+    public String getHash() {
+        return entry.getHash();
+    }
+
+    public long getSize() {
+        return entry.getSize();
+    }
+
+    @Override
+    public void write(File file) throws IOException {
+        write(file, Durability.NONE);
+    }
+
+    @Override
+    public void write(File file, Durability durability) throws IOException {
+        checkNotReleased();
+        PartFiles.copy(entry.getFile(), file, durability);
+    }
+
+    @Override
+    public String getField() {
+        return fieldName;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public boolean isFormField() {
+        return false;
+    }
+
+    @Override
+    public String getValue() {
+        try {
+            return Charsets.decode(getByteBuffer(), charset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return 对象的只读映射
+     */
+    @Override
+    public ByteBuffer getByteBuffer() throws IOException {
+        checkNotReleased();
+        RandomAccessFile raf = new RandomAccessFile(entry.getFile(), "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkNotReleased();
+        return new FileInputStream(entry.getFile());
+    }
+
+    /**
+     * 归还该条目对存储对象的引用,对象本身在引用数为0后由 {@link ContentStore#gc} 删除.
+     * 需要长期保存文件时不要调用,之后通过 {@link ContentStore#release(String)} 归还
+     */
+    @Override
+    public void delete() {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            store.release(entry.getHash());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("the part has been deleted");
+        }
+    }
+}
@@ -1,23 +1,897 @@
 package com.sllx.fileupload.core;
 
 
+import com.sllx.fileupload.util.Charsets;
+
 import javax.servlet.http.HttpServletRequest;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class Upload {
 
+    /**
+     * 默认的小型表单域上限
+     */
+    private static final int DEFAULT_FIELD_THRESHOLD = 1024;
+
+    /**
+     * 默认的整体读入上限
+     */
+    private static final int DEFAULT_WHOLE_BODY_THRESHOLD = 64 * 1024;
+
+    /**
+     * 每个线程缓存一个解析器,同一线程上的请求复用其缓冲与内部对象,使用中时为null.
+     * 见 {@link #setParserPooling(boolean)}
+     */
+    private static final ThreadLocal<ItemIterator> PARSERS = new ThreadLocal<ItemIterator>();
+
+    /**
+     * 每个线程缓存一个 <code>application/x-www-form-urlencoded</code> 解析器,使用中时为null
+     */
+    private static final ThreadLocal<UrlEncodedParser> FORM_PARSERS = new ThreadLocal<UrlEncodedParser>();
+
+    private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+    /**
+     * 字段过滤器,为null时解析所有条目
+     */
+    private FieldFilter fieldFilter;
+
+    /**
+     * 通过 {@link #setAllowedFields(String...)} 指定的字段名,用于判断是否已取得所有需要的字段
+     */
+    private Set<String> allowedFields;
+
+    /**
+     * 取得所有需要的字段后是否立即停止解析
+     */
+    private boolean stopAfterLastField;
+
+    /**
+     * 提前停止解析时剩余数据的处理方式
+     */
+    private RemainderPolicy remainderPolicy = RemainderPolicy.DRAIN;
+
+    /**
+     * 不超过该字节数的表单域直接从解析缓冲中解码
+     */
+    private int fieldThreshold = DEFAULT_FIELD_THRESHOLD;
+
+    /**
+     * 声明长度不超过该字节数的请求整体读入一个数组,条目直接引用其中的切片
+     */
+    private int wholeBodyThreshold = DEFAULT_WHOLE_BODY_THRESHOLD;
+
+    /**
+     * 内存中的条目共享的预算,为null时不限制
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * 预算不足时临时文件所在的目录,为null时使用系统临时目录
+     */
+    private File repository;
+
+    /**
+     * 读取带宽限制,为null时不限制
+     */
+    private BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * 决定文件条目保存位置的回调,为null时文件条目与表单域一样保存
+     */
+    private DestinationResolver destinationResolver;
+
+    /**
+     * 文件条目的去重存储,为null时文件条目与表单域一样保存
+     */
+    private ContentStore contentStore;
+
+    /**
+     * 预读环中的块数,0表示不预读
+     */
+    private int readAheadDepth;
+
+    /**
+     * 预读环中每块的大小
+     */
+    private int readAheadChunkSize;
+
+    /**
+     * 运行预读的线程池,为null时每个请求使用一个新线程
+     */
+    private Executor readAheadExecutor;
+
+    /**
+     * 是否在线程中缓存解析器
+     */
+    private boolean parserPooling = true;
+
+    /**
+     * 解析缓冲的最小大小
+     */
+    private int minBufferSize = MultipartStream.DEFAULT_BUFSIZE;
+
+    /**
+     * 解析缓冲的最大大小
+     */
+    private int maxBufferSize = MultipartStream.DEFAULT_MAX_BUFSIZE;
+
+    /**
+     * 两次读到数据之间的最长时间,0表示不限制
+     */
+    private long idleTimeoutNanos;
+
+    /**
+     * 读取整个请求的最长时间,0表示不限制
+     */
+    private long totalTimeoutNanos;
+
+    /**
+     * 最低读取速度(字节/秒),0表示不限制
+     */
+    private long minBytesPerSecond;
+
+    /**
+     * 计算读取速度的统计周期
+     */
+    private long throughputWindowNanos;
+
     public List<Part> parseRequest(HttpServletRequest request) throws IOException {
-        RequestContext ctx  = new RequestContext(request);
-        ArrayList<Part> fileParts = new ArrayList<Part>();
-        ItemIterator iter = new ItemIterator(ctx);
-        while (iter.hasNext()){
-            Item item = iter.next();
-            PartStream part = new PartStream(item.getFieldName(), item.openStream(), item.getFileName(), ctx.getCharacterEncoding());
-            fileParts.add(part);
-        }
-        fileParts.trimToSize();
-        return fileParts;
+        return parseRequest(request, null);
+    }
+
+    /**
+     * <p>可以在其他线程中通过 <code>cancellation</code> 取消的解析
+     *
+     * <p><code>application/x-www-form-urlencoded</code> 请求同样以流的方式解析,每个字段都是一个表单域条目,
+     * 字段过滤、内存预算与读取限制同样生效,不需要容器预先读入整个请求体
+     *
+     * @param request      请求
+     * @param cancellation 取消句柄,为null时不能取消
+     * @return 解析出的条目
+     * @throws UploadCancelledException 解析被取消,已解析的条目已被删除
+     * @throws IOException
+     */
+    public List<Part> parseRequest(HttpServletRequest request, UploadCancellation cancellation) throws IOException {
+        return parseForm(RequestContext.of(request), cancellation).asList();
+    }
+
+    /**
+     * 解析Servlet以外来源的请求
+     *
+     * @see #parseRequest(HttpServletRequest, UploadCancellation)
+     * @see RequestContext
+     */
+    public List<Part> parseRequest(RequestContext ctx, UploadCancellation cancellation) throws IOException {
+        return parseForm(ctx, cancellation).asList();
+    }
+
+    /**
+     * @see #parseForm(RequestContext, UploadCancellation)
+     */
+    public MultipartForm parseForm(HttpServletRequest request) throws IOException {
+        return parseForm(RequestContext.of(request), null);
+    }
+
+    /**
+     * @see #parseForm(RequestContext, UploadCancellation)
+     */
+    public MultipartForm parseForm(HttpServletRequest request, UploadCancellation cancellation) throws IOException {
+        return parseForm(RequestContext.of(request), cancellation);
+    }
+
+    /**
+     * 与 {@link #parseRequest(HttpServletRequest, UploadCancellation)} 相同的解析,结果按字段名索引,
+     * 索引在解析过程中建立
+     *
+     * @param ctx          请求
+     * @param cancellation 取消句柄,为null时不能取消
+     * @return 解析出的表单
+     * @throws UploadCancelledException 解析被取消,已解析的条目已被删除
+     * @throws IOException
+     */
+    public MultipartForm parseForm(RequestContext ctx, UploadCancellation cancellation) throws IOException {
+        UploadStatistics statistics = UploadStatistics.global();
+        statistics.noteRequest();
+        long start = System.nanoTime();
+        try {
+            MultipartForm form = parse(ctx, cancellation);
+            statistics.noteParsed(System.nanoTime() - start);
+            return form;
+        } catch (IOException e) {
+            statistics.noteFailure(e, System.nanoTime() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.noteFailure(e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * <p>以流的方式逐个取得条目,不复制任何body数据.可以先通过 {@link Item#peek(int)} 检查内容,
+     * 再决定如何读取或是否跳过
+     *
+     * <p>字段过滤器与解析缓冲大小的设置同样生效,内存预算与整体读入不适用
+     *
+     * @param request 请求
+     * @return 条目迭代器
+     * @throws IOException
+     */
+    public ItemIterator getItemIterator(HttpServletRequest request) throws IOException {
+        return getItemIterator(RequestContext.of(request));
+    }
+
+    /**
+     * @see #getItemIterator(HttpServletRequest)
+     */
+    public ItemIterator getItemIterator(RequestContext ctx) throws IOException {
+        ItemIterator iter = new ItemIterator(ctx,
+                MultipartStream.bufferSizeFor(ctx.contentLength(), minBufferSize, maxBufferSize), maxBufferSize);
+        iter.setFieldFilter(fieldFilter);
+        return iter;
+    }
+
+    private MultipartForm parse(RequestContext ctx, UploadCancellation cancellation) throws IOException {
+        ParseEvents.Request requestEvent = new ParseEvents.Request();
+        requestEvent.begin();
+        long contentLength = ctx.contentLength();
+        if (memoryBudget != null && !memoryBudget.admit(contentLength)) {
+            throw new BudgetExceededException(String.format(
+                    "Request of %s bytes does not fit into the memory budget", Long.valueOf(contentLength)));
+        }
+        ReadGuard guard = null;
+        ReadAheadInputStream readAhead = null;
+        BandwidthLimiter.Shaper shaper = null;
+        //看门狗或后台读取启动失败(如线程池拒绝)时,已启动的部分同样由finally停止
+        try {
+            if (idleTimeoutNanos > 0 || totalTimeoutNanos > 0 || minBytesPerSecond > 0) {
+                guard = new ReadGuard(ctx.getInputStream(),
+                        idleTimeoutNanos, totalTimeoutNanos, minBytesPerSecond, throughputWindowNanos);
+                guard.start();
+            }
+            if (cancellation != null) {
+                cancellation.attach(ctx.getInputStream());
+            }
+            //读取限制与取消关闭的是原始输入流,后台线程的读取随之失败
+            if (readsAhead(contentLength)) {
+                readAhead = ctx.readAhead(contentLength, readAheadDepth, readAheadChunkSize, readAheadExecutor);
+            }
+            if (bandwidthLimiter != null) {
+                shaper = bandwidthLimiter.open(contentLength);
+            }
+            return parse(ctx, contentLength, guard, cancellation, shaper, requestEvent);
+        } catch (UploadCancelledException e) {
+            //条目已在内层删除,这里只处理剩余数据
+            try {
+                UploadStatistics.global().noteSkippedBytes(cancellation.discardRemainder(ctx.getInputStream()));
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        } finally {
+            //先于读取限制停止,等待后台线程退出时看门狗仍然有效
+            if (readAhead != null) {
+                readAhead.finish();
+            }
+            if (guard != null) {
+                guard.stop();
+            }
+            if (cancellation != null) {
+                cancellation.detach();
+            }
+            if (shaper != null) {
+                shaper.close();
+            }
+        }
+    }
+
+    private MultipartForm parse(RequestContext ctx, long contentLength, ReadGuard guard,
+                             UploadCancellation cancellation, BandwidthLimiter.Shaper shaper,
+                             ParseEvents.Request requestEvent) throws IOException {
+        Charset charset = Charsets.forName(ctx.getCharacterEncoding());
+        if (isUrlEncoded(ctx.getContentType())) {
+            return parseUrlEncoded(ctx, contentLength, charset, guard, cancellation, shaper, requestEvent);
+        }
+        boolean wholeBody = readsWholeBody(contentLength);
+        ItemIterator iter;
+        try {
+            if (wholeBody) {
+                int size = MultipartStream.wholeBodySize(contentLength, ctx.getContentType());
+                iter = acquireParser(ctx, size, size);
+            } else {
+                iter = acquireParser(ctx,
+                        MultipartStream.bufferSizeFor(contentLength, minBufferSize, maxBufferSize), maxBufferSize);
+            }
+        } catch (IOException e) {
+            releaseWholeBody(wholeBody, contentLength);
+            throw e;
+        } catch (RuntimeException e) {
+            //contentType不是multipart或没有boundary,预留的预算必须立即归还
+            releaseWholeBody(wholeBody, contentLength);
+            throw e;
+        }
+        iter.notifier().setGuard(guard);
+        iter.notifier().setCancellation(cancellation);
+        iter.notifier().setShaper(shaper);
+        MemoryBudget.Shared reservation = null;
+        try {
+            if (wholeBody) {
+                reservation = readWholeBody(iter, contentLength);
+            }
+            return parse(ctx, iter, contentLength, wholeBody, reservation, charset, cancellation, requestEvent);
+        } finally {
+            if (reservation != null) {
+                reservation.seal();
+            }
+            releaseParser(iter);
+        }
+    }
+
+    /**
+     * 整体读入请求体,读取失败时立即归还预留的预算
+     *
+     * @return 由各个切片条目共享的预留,所有切片条目都被删除后归还;没有预算时为null
+     */
+    private MemoryBudget.Shared readWholeBody(ItemIterator iter, long contentLength) throws IOException {
+        byte[] body;
+        try {
+            body = iter.readWholeBody();
+        } catch (IOException e) {
+            releaseWholeBody(true, contentLength);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseWholeBody(true, contentLength);
+            throw e;
+        }
+        return memoryBudget != null ? memoryBudget.share(body, contentLength) : null;
+    }
+
+    /**
+     * 整体读入之前失败时归还 {@link #readsWholeBody(long)} 预留的预算
+     */
+    private void releaseWholeBody(boolean wholeBody, long contentLength) {
+        if (wholeBody && memoryBudget != null) {
+            memoryBudget.release(contentLength);
+        }
+    }
+
+    private MultipartForm parse(RequestContext ctx, ItemIterator iter, long contentLength, boolean wholeBody,
+                             MemoryBudget.Shared reservation, Charset charset, UploadCancellation cancellation,
+                             ParseEvents.Request requestEvent) throws IOException {
+        MultipartForm form = new MultipartForm();
+        iter.setFieldFilter(fieldFilter);
+        Set<String> pendingFields = null;
+        if (stopAfterLastField && allowedFields != null) {
+            pendingFields = new HashSet<String>(allowedFields);
+        }
+        try {
+            if (pendingFields != null && pendingFields.isEmpty()) {
+                iter.abandon(remainderPolicy);
+            }
+            while (iter.hasNext()){
+                if (cancellation != null) {
+                    cancellation.checkpoint();
+                }
+                Item item = iter.next();
+                ParseEvents.Part partEvent = new ParseEvents.Part();
+                partEvent.begin();
+                form.add(toPart(item, charset, wholeBody, reservation));
+                if (partEvent.shouldCommit()) {
+                    partEvent.partIndex = form.size() - 1;
+                    partEvent.fieldName = item.getFieldName();
+                    partEvent.contentType = item.getContentType();
+                    partEvent.bytes = iter.position() - iter.bodyOffset();
+                    partEvent.commit();
+                }
+                if (pendingFields != null && pendingFields.remove(item.getFieldName()) && pendingFields.isEmpty()) {
+                    //所有需要的字段都已取得,不再解析剩余的条目
+                    iter.abandon(remainderPolicy);
+                }
+            }
+            commitDestinations(form);
+        } catch (IOException e) {
+            discard(form);
+            throw e;
+        } catch (RuntimeException e) {
+            discard(form);
+            throw e;
+        }
+        form.trimToSize();
+        if (requestEvent.shouldCommit()) {
+            requestEvent.contentType = ctx.getContentType();
+            requestEvent.contentLength = contentLength;
+            requestEvent.bytesRead = iter.notifier().getBytesRead();
+            requestEvent.parts = form.size();
+            requestEvent.commit();
+        }
+        return form;
+    }
+
+    private static boolean isUrlEncoded(String contentType) {
+        return contentType != null && contentType.toLowerCase(Locale.ENGLISH).startsWith(FORM_URLENCODED);
+    }
+
+    /**
+     * 逐个解析 <code>name=value</code>,值直接从解析缓冲中解码.被过滤的字段只查找下一个分隔符,不解码
+     */
+    private MultipartForm parseUrlEncoded(RequestContext ctx, long contentLength, Charset charset, ReadGuard guard,
+                                       UploadCancellation cancellation, BandwidthLimiter.Shaper shaper,
+                                       ParseEvents.Request requestEvent) throws IOException {
+        UrlEncodedParser parser = acquireFormParser(ctx,
+                MultipartStream.bufferSizeFor(contentLength, minBufferSize, maxBufferSize), maxBufferSize);
+        MultipartStream.ProgressNotifier notifier = parser.notifier();
+        notifier.setGuard(guard);
+        notifier.setCancellation(cancellation);
+        notifier.setShaper(shaper);
+        MultipartForm form = new MultipartForm();
+        Set<String> pendingFields = null;
+        if (stopAfterLastField && allowedFields != null) {
+            pendingFields = new HashSet<String>(allowedFields);
+        }
+        try {
+            if (pendingFields != null && pendingFields.isEmpty()) {
+                parser.abandon(remainderPolicy);
+            }
+            String name;
+            while ((name = parser.nextName(charset)) != null) {
+                if (cancellation != null) {
+                    cancellation.checkpoint();
+                }
+                if (fieldFilter != null && !fieldFilter.accept(name)) {
+                    //值在读取下一个字段名时跳过
+                    continue;
+                }
+                ParseEvents.Part partEvent = new ParseEvents.Part();
+                partEvent.begin();
+                long start = notifier.getBytesRead();
+                form.add(fieldPart(parser, name, charset));
+                if (partEvent.shouldCommit()) {
+                    partEvent.partIndex = form.size() - 1;
+                    partEvent.fieldName = name;
+                    partEvent.contentType = null;
+                    partEvent.bytes = notifier.getBytesRead() - start;
+                    partEvent.commit();
+                }
+                if (pendingFields != null && pendingFields.remove(name) && pendingFields.isEmpty()) {
+                    parser.abandon(remainderPolicy);
+                }
+            }
+            //解析器放回缓存时计数被清空,需要在此之前提交
+            if (requestEvent.shouldCommit()) {
+                requestEvent.contentType = ctx.getContentType();
+                requestEvent.contentLength = contentLength;
+                requestEvent.bytesRead = notifier.getBytesRead();
+                requestEvent.parts = form.size();
+                requestEvent.commit();
+            }
+        } catch (IOException e) {
+            form.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            form.delete();
+            throw e;
+        } finally {
+            releaseFormParser(parser);
+        }
+        form.trimToSize();
+        return form;
+    }
+
+    /**
+     * 不超过{@link #fieldThreshold}的值直接解码,否则与multipart中的大型表单域一样复制到{@link PartStream}中,
+     * 受内存预算限制
+     */
+    private Part fieldPart(UrlEncodedParser parser, String name, Charset charset) throws IOException {
+        if (fieldThreshold > 0) {
+            byte[] value = parser.readValue(fieldThreshold);
+            if (value != null) {
+                return new FieldPart(name, value, charset);
+            }
+        }
+        return new PartStream(name, parser.openValue(), null, charset, memoryBudget, repository);
+    }
+
+    private UrlEncodedParser acquireFormParser(RequestContext ctx, int bufSize, int maxBufSize) throws IOException {
+        UrlEncodedParser parser = parserPooling ? FORM_PARSERS.get() : null;
+        if (parser == null) {
+            return new UrlEncodedParser(ctx.getInputStream(), bufSize);
+        }
+        parser.reset(ctx.getInputStream(), bufSize, maxBufSize);
+        FORM_PARSERS.remove();
+        return parser;
+    }
+
+    private void releaseFormParser(UrlEncodedParser parser) {
+        if (parserPooling) {
+            parser.release(retainedBufferSize());
+            FORM_PARSERS.set(parser);
+        }
+    }
+
+    /**
+     * 取得当前线程缓存的解析器,没有时创建一个新的
+     */
+    private ItemIterator acquireParser(RequestContext ctx, int bufSize, int maxBufSize) throws IOException {
+        ItemIterator iter = parserPooling ? PARSERS.get() : null;
+        if (iter == null) {
+            iter = new ItemIterator(ctx, bufSize, maxBufSize);
+            //条目的流在newPart中读完即关闭,不会被保留
+            iter.setRecycleStreams(true);
+            return iter;
+        }
+        //reset因contentType非法而失败时解析器仍留在缓存中
+        iter.reset(ctx.getContentType(), ctx.getInputStream(), ctx.getCharacterEncoding(), bufSize, maxBufSize);
+        iter.setChannel(ctx.getChannel());
+        //嵌套的解析将创建新的解析器
+        PARSERS.remove();
+        return iter;
+    }
+
+    /**
+     * 解析结束后将解析器放回当前线程的缓存,扩大过的缓冲不被保留
+     */
+    private void releaseParser(ItemIterator iter) {
+        if (parserPooling) {
+            iter.release(retainedBufferSize());
+            PARSERS.set(iter);
+        }
+    }
+
+    /**
+     * @return 缓存的解析器保留的最大缓冲大小,为默认大小与最小大小中较大者
+     */
+    private int retainedBufferSize() {
+        return Math.max(MultipartStream.DEFAULT_BUFSIZE, minBufferSize);
+    }
+
+    /**
+     * 请求声明了长度且不超过{@link #wholeBodyThreshold}时整体读入,有预算时还需要能立即预留整个请求,
+     * 否则仍按流式解析
+     */
+    private boolean readsWholeBody(long contentLength) {
+        if (contentLength <= 0 || contentLength > wholeBodyThreshold) {
+            return false;
+        }
+        return memoryBudget == null || memoryBudget.tryReserve(contentLength);
+    }
+
+    /**
+     * 只有声明了长度、不会整体读入且长于整个预读环的请求才预读
+     */
+    private boolean readsAhead(long contentLength) {
+        if (readAheadDepth <= 0 || contentLength <= wholeBodyThreshold) {
+            return false;
+        }
+        return contentLength > (long) readAheadDepth * readAheadChunkSize;
+    }
+
+    private Part toPart(Item item, Charset charset, boolean wholeBody, MemoryBudget.Shared reservation)
+            throws IOException {
+        if (destinationResolver != null && !item.isFormField()) {
+            Path path = destinationResolver.resolve(item.getFieldName(), item.getFileName(), item.getHeaders());
+            if (path != null) {
+                return writeThrough(item, path, wholeBody, charset);
+            }
+        }
+        if (contentStore != null && !item.isFormField()) {
+            return new StoredPart(item.getFieldName(), item.getFileName(), contentStore,
+                    contentStore.store(item.openStream()), charset);
+        }
+        return wholeBody ? slicePart(item, charset, reservation) : newPart(item, charset);
+    }
+
+    /**
+     * 将条目的body从解析缓冲直接写入目标文件旁的临时文件,整个请求解析成功后才重命名为目标文件,
+     * 见 {@link #commitDestinations(MultipartForm)}.整体读入时长度已知,只需一次写入
+     */
+    private static DestinationPart writeThrough(final Item item, Path path, final boolean wholeBody,
+                                                Charset charset) throws IOException {
+        final long[] size = new long[1];
+        File temp = PartFiles.writeTemp(path.toFile(), new PartFiles.Content() {
+            @Override
+            public void writeTo(FileChannel channel) throws IOException {
+                if (wholeBody) {
+                    ByteBuffer slice = ((MultipartStream.ItemInputStream) item.openStream()).slice();
+                    size[0] = slice.remaining();
+                    while (slice.hasRemaining()) {
+                        channel.write(slice);
+                    }
+                } else {
+                    size[0] = item.transferTo(channel);
+                }
+            }
+        });
+        return new DestinationPart(item.getFieldName(), item.getFileName(), path, temp, size[0], charset);
+    }
+
+    /**
+     * 请求解析成功后将所有 {@link DestinationPart} 的临时文件重命名为目标文件.
+     * 解析失败时只删除临时文件,已存在的目标文件不会被截断或删除
+     */
+    private static void commitDestinations(MultipartForm form) throws IOException {
+        for (Part part : form) {
+            if (part instanceof DestinationPart) {
+                ((DestinationPart) part).commit();
+            }
+        }
+    }
+
+    /**
+     * 解析失败时删除已解析的条目.{@link #commitDestinations(MultipartForm)} 中途失败时,
+     * 已重命名的 {@link DestinationPart} 已经替换了原有的文件,只能保留新的内容,不再删除
+     */
+    private static void discard(MultipartForm form) {
+        for (Part part : form) {
+            if (part instanceof DestinationPart) {
+                ((DestinationPart) part).discard();
+            } else {
+                part.delete();
+            }
+        }
+    }
+
+    /**
+     * 整体读入时条目只是请求数组中的一段,不复制也不解码
+     */
+    private static Part slicePart(Item item, Charset charset, MemoryBudget.Shared reservation) throws IOException {
+        MultipartStream.ItemInputStream input = (MultipartStream.ItemInputStream) item.openStream();
+        return new BufferPart(item.getFieldName(), item.getFileName(), input.slice(), charset, reservation);
+    }
+
+    /**
+     * 表单域的body完整地位于解析缓冲中且不超过{@link #fieldThreshold}时直接解码,
+     * 否则复制到{@link PartStream}中
+     */
+    private Part newPart(Item item, Charset charset) throws IOException {
+        MultipartStream.ItemInputStream input = (MultipartStream.ItemInputStream) item.openStream();
+        if (item.isFormField() && fieldThreshold > 0) {
+            byte[] value = input.readBytes(fieldThreshold);
+            if (value != null) {
+                return new FieldPart(item.getFieldName(), value, charset);
+            }
+        }
+        return new PartStream(item.getFieldName(), input, item.getFileName(), charset, memoryBudget, repository);
+    }
+
+    /**
+     * <p>内存中的条目每增长一块都要先从预算中预留,预算耗尽时按{@link MemoryBudget#getPolicy()}处理.
+     * 解析开始前还会根据请求声明的长度调用{@link MemoryBudget#admit(long)},不被接受的请求直接抛出
+     * {@link BudgetExceededException}
+     *
+     * <p>条目占用的预算在{@link Part#delete()}或条目被回收时归还
+     *
+     * @param memoryBudget 多个请求共享的预算,为null时不限制
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * 使用固定大小的解析缓冲,不再根据请求长度选择或在读取时扩大
+     *
+     * @param bufferSize 缓冲大小,至少要能容纳分界线加上5个字节
+     */
+    public void setBufferSize(int bufferSize) {
+        setBufferSizeBounds(bufferSize, bufferSize);
+    }
+
+    /**
+     * <p>解析缓冲的初始大小约为请求声明长度的1/16,限制在 [min, max] 之间,长度未知时为min.
+     * 解析过程中若连续的读取都填满了缓冲,缓冲将成倍扩大,直至max
+     *
+     * @param minBufferSize 最小缓冲大小,默认为4096
+     * @param maxBufferSize 最大缓冲大小,默认为65536
+     */
+    public void setBufferSizeBounds(int minBufferSize, int maxBufferSize) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException(String.format("Invalid buffer size bounds [%s, %s]",
+                    Integer.valueOf(minBufferSize), Integer.valueOf(maxBufferSize)));
+        }
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * <p>超过该时间没有读到任何数据时中止解析,抛出 {@link SlowClientException}
+     *
+     * <p>阻塞在读取中的线程由看门狗关闭输入流唤醒,已解析的条目与临时文件随即被删除.
+     * 读取限制只对 {@link #parseRequest} 与 {@link #parseForm} 生效
+     *
+     * @param timeout 时间,0表示不限制
+     * @param unit    时间单位
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * 读取整个请求体超过该时间时中止解析,抛出 {@link SlowClientException}
+     *
+     * @param timeout 时间,0表示不限制
+     * @param unit    时间单位
+     * @see #setIdleTimeout(long, TimeUnit)
+     */
+    public void setTotalTimeout(long timeout, TimeUnit unit) {
+        this.totalTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * 每个统计周期内的平均读取速度低于下限时中止解析,抛出 {@link SlowClientException}.
+     * 统计周期同时也是请求开始后的宽限期
+     *
+     * @param bytesPerSecond 最低速度,0表示不限制
+     * @param window         统计周期
+     * @param unit           时间单位
+     * @see #setIdleTimeout(long, TimeUnit)
+     */
+    public void setMinThroughput(long bytesPerSecond, long window, TimeUnit unit) {
+        if (bytesPerSecond > 0 && window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.minBytesPerSecond = bytesPerSecond;
+        this.throughputWindowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * <p>限制读取请求体的速度,同一个限制可以被多个 {@link Upload} 共享.
+     * 只对 {@link #parseRequest} 与 {@link #parseForm} 生效
+     *
+     * @param bandwidthLimiter 带宽限制,为null时不限制
+     * @see BandwidthLimiter
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * @param depth     预读环中的块数,0表示不预读
+     * @param chunkSize 每块的大小
+     * @see #setReadAhead(int, int, Executor)
+     */
+    public void setReadAhead(int depth, int chunkSize) {
+        setReadAhead(depth, chunkSize, null);
+    }
+
+    /**
+     * <p>在后台线程中预先读取请求体,解析线程处理上一块数据时下一块的读取已经在进行,
+     * 适合客户端发送速度快于单线程解析的情况.环满时后台线程等待,每个请求最多占用 <code>depth * chunkSize</code> 字节
+     *
+     * <p>只对 {@link #parseRequest} 与 {@link #parseForm} 中声明了长度、不会整体读入且长于整个环的请求生效,
+     * 后台线程不会读取超过声明长度的数据
+     *
+     * @param depth     预读环中的块数,0表示不预读
+     * @param chunkSize 每块的大小
+     * @param executor  运行后台读取的线程池,每个请求占用一个线程直至读完;为null时每个请求使用一个新线程
+     */
+    public void setReadAhead(int depth, int chunkSize, Executor executor) {
+        if (depth < 0 || (depth > 0 && chunkSize <= 0)) {
+            throw new IllegalArgumentException(String.format("Invalid read-ahead of %s chunks of %s bytes",
+                    Integer.valueOf(depth), Integer.valueOf(chunkSize)));
+        }
+        this.readAheadDepth = depth;
+        this.readAheadChunkSize = chunkSize;
+        this.readAheadExecutor = executor;
+    }
+
+    /**
+     * <p>每个文件条目在读取body之前由 <code>destinationResolver</code> 决定保存位置,body直接从解析缓冲写入该文件,
+     * 不经过 {@link PartStream},也不占用内存预算.解析结果为 {@link DestinationPart}
+     *
+     * <p>body先写入目标文件旁的临时文件,整个请求解析成功后才重命名为目标文件;解析失败时只删除临时文件,
+     * 已存在的目标文件保持不变.同时设置了 {@link #setContentStore(ContentStore)} 时,
+     * 返回路径的条目不再写入去重存储
+     *
+     * @param destinationResolver 决定保存位置的回调,为null时关闭
+     */
+    public void setDestinationResolver(DestinationResolver destinationResolver) {
+        this.destinationResolver = destinationResolver;
+    }
+
+    /**
+     * <p>文件条目在解析时直接写入去重存储并计算哈希,解析结果为 {@link StoredPart},
+     * 内容已存在时只增加引用数,不保存新的副本
+     *
+     * <p>解析失败时已存储条目的引用被归还,对象由 {@link ContentStore#gc} 回收
+     *
+     * @param contentStore 去重存储,为null时关闭
+     */
+    public void setContentStore(ContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * @param repository 预算不足时临时文件所在的目录,为null时使用系统临时目录
+     */
+    public void setRepository(File repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * <p>不超过该字节数的表单域将直接从解析缓冲中解码为字符串,不经过中间的{@link ByteArrayOutputStream}
+     *
+     * <p>实际可以直接解码的大小还受解析缓冲大小的限制,设置为0时关闭该功能
+     *
+     * @param fieldThreshold 字节数,默认为1024
+     */
+    public void setFieldThreshold(int fieldThreshold) {
+        this.fieldThreshold = fieldThreshold;
+    }
+
+    /**
+     * <p>声明长度不超过该字节数的请求将一次性读入一个数组,每个条目只是数组中的一段只读切片,
+     * 值在首次调用{@link Part#getValue()}时才解码.有预算时整个请求作为一块预留,
+     * 在所有条目都不可达后归还,预算不足时仍按流式解析
+     *
+     * <p>设置为0时关闭该功能
+     *
+     * @param wholeBodyThreshold 字节数,默认为65536
+     */
+    public void setWholeBodyThreshold(int wholeBodyThreshold) {
+        this.wholeBodyThreshold = wholeBodyThreshold;
+    }
+
+    /**
+     * 只解析被过滤器接受的条目,其余条目只移动游标跳过
+     *
+     * @param fieldFilter 字段过滤器,为null时解析所有条目
+     */
+    public void setFieldFilter(FieldFilter fieldFilter) {
+        this.fieldFilter = fieldFilter;
+        this.allowedFields = null;
+    }
+
+    /**
+     * 只解析指定名称的字段,其余条目只移动游标跳过
+     *
+     * @param fieldNames 需要的字段名
+     */
+    public void setAllowedFields(String... fieldNames) {
+        final Set<String> names = new HashSet<String>(Arrays.asList(fieldNames));
+        this.fieldFilter = new FieldFilter() {
+            @Override
+            public boolean accept(String fieldName) {
+                return names.contains(fieldName);
+            }
+        };
+        this.allowedFields = names;
+    }
+
+    /**
+     * <p>设置为true时,{@link #setAllowedFields(String...)} 指定的每个字段都取得一次后立即停止解析,
+     * 剩余数据按 {@link #setRemainderPolicy(RemainderPolicy)} 处理
+     *
+     * <p>之后出现的同名字段将不会被解析.只使用 {@link #setFieldFilter(FieldFilter)} 时无法判断何时取得了所有字段,该设置无效
+     *
+     * @param stopAfterLastField 是否提前停止
+     */
+    public void setStopAfterLastField(boolean stopAfterLastField) {
+        this.stopAfterLastField = stopAfterLastField;
+    }
+
+    /**
+     * <p>默认每个线程缓存一个解析器,同一线程上的请求复用其内部对象.缓存期间只保留不超过默认大小
+     * (或更大的最小大小)的缓冲,该内存不计入 {@link MemoryBudget}
+     *
+     * <p>缓存随线程存在,应用卸载后容器线程仍在时会使应用的类加载器无法回收,这类环境应关闭缓存.
+     * 关闭后每个请求创建新的解析器,之前缓存在线程中的解析器不再被使用
+     *
+     * @param parserPooling 是否在线程中缓存解析器
+     */
+    public void setParserPooling(boolean parserPooling) {
+        this.parserPooling = parserPooling;
+    }
+
+    /**
+     * @param remainderPolicy 提前停止解析时剩余数据的处理方式,默认为 {@link RemainderPolicy#DRAIN}
+     */
+    public void setRemainderPolicy(RemainderPolicy remainderPolicy) {
+        this.remainderPolicy = remainderPolicy;
     }
 }
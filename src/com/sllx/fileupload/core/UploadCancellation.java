@@ -0,0 +1,143 @@
+package com.sllx.fileupload.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>取消正在进行的解析,可以在其他线程中调用
+ *
+ * <p>解析线程在每次从输入流读取之前以及每个条目开始之前检查是否已被取消,因此取消最迟在当前这次读取完成后生效,
+ * 之后 {@link Upload#parseRequest(javax.servlet.http.HttpServletRequest, UploadCancellation)} 抛出
+ * {@link UploadCancelledException}.已解析的条目与临时文件随即被删除,请求体剩余的数据按取消时指定的
+ * {@link RemainderPolicy} 处理.以 {@link RemainderPolicy#CLOSE} 取消时输入流立即被关闭,阻塞在读取中的线程也会立即返回.
+ *
+ * <p>一个实例只用于一次解析
+ */
+public class UploadCancellation {
+
+    /**
+     * 取消时指定的剩余数据处理方式,未取消时为null
+     */
+    private volatile RemainderPolicy policy;
+
+    /**
+     * 正在解析的请求体,解析开始前与结束后为null
+     */
+    private volatile Closeable input;
+
+    /**
+     * 取消解析,剩余数据被读完丢弃,连接可以继续复用
+     */
+    public void cancel() {
+        cancel(RemainderPolicy.DRAIN);
+    }
+
+    /**
+     * 取消解析
+     *
+     * @param policy 请求体剩余数据的处理方式
+     */
+    public void cancel(RemainderPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        synchronized (this) {
+            if (this.policy != null) {
+                return;
+            }
+            this.policy = policy;
+        }
+        if (policy == RemainderPolicy.CLOSE) {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return 是否已被取消
+     */
+    public boolean isCancelled() {
+        return policy != null;
+    }
+
+    /**
+     * 解析开始时调用
+     *
+     * @param input 请求体
+     */
+    void attach(Closeable input) {
+        this.input = input;
+        //在attach之前以CLOSE取消时没有可关闭的流
+        if (policy == RemainderPolicy.CLOSE) {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * 解析结束时调用,之后的取消不再影响输入流
+     */
+    void detach() {
+        this.input = null;
+    }
+
+    /**
+     * @throws UploadCancelledException 已被取消
+     */
+    void checkpoint() throws UploadCancelledException {
+        if (policy != null) {
+            throw new UploadCancelledException("The upload has been cancelled");
+        }
+    }
+
+    /**
+     * 读取失败或读到末尾时调用,若是因为取消而关闭了输入流,抛出 {@link UploadCancelledException}
+     *
+     * @param cause 读取失败的原因,读到末尾时为null
+     * @throws UploadCancelledException 已被取消
+     */
+    void checkAborted(IOException cause) throws UploadCancelledException {
+        if (policy != null) {
+            UploadCancelledException e = new UploadCancelledException("The upload has been cancelled");
+            if (cause != null) {
+                e.initCause(cause);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 按取消时指定的方式处理剩余数据,不经过解析器也不复制
+     *
+     * @param input 请求体
+     * @return 丢弃的字节数
+     * @throws IOException
+     */
+    long discardRemainder(InputStream input) throws IOException {
+        if (policy == RemainderPolicy.CLOSE) {
+            input.close();
+            return 0;
+        }
+        byte[] scratch = new byte[MultipartStream.DEFAULT_BUFSIZE];
+        long drained = 0;
+        for (;;) {
+            int n = input.read(scratch);
+            if (n == -1) {
+                break;
+            }
+            drained += n;
+        }
+        input.close();
+        return drained;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //解析线程会通过checkAborted得知原因
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.sllx.fileupload.core;
+
+/**
+ * 解析被 {@link UploadCancellation#cancel()} 取消时抛出
+ */
+public class UploadCancelledException extends UploadException {
+
+    public UploadCancelledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,17 @@
+package com.sllx.fileupload.core;
+
+import java.io.IOException;
+
+/**
+ * 由于限制或控制而中止解析时抛出的异常的基类
+ */
+public class UploadException extends IOException {
+
+    public UploadException(String message) {
+        super(message);
+    }
+
+    public UploadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
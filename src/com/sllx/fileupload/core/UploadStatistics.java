@@ -0,0 +1,312 @@
+package com.sllx.fileupload.core;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>进程内所有解析过程的汇总统计
+ *
+ * <p>所有计数都使用 {@link LongAdder},高并发下各线程写入不同的单元,不会在同一个缓存行上竞争.
+ * 首次调用 {@link #global()} 时注册到平台MBeanServer,也可以通过 {@link #snapshot()} 直接读取.
+ */
+public final class UploadStatistics implements UploadStatisticsMXBean {
+
+    /**
+     * MBean的对象名
+     */
+    public static final String OBJECT_NAME = "com.sllx.fileupload:type=UploadStatistics";
+
+    /**
+     * 解析耗时直方图的区间数,第i个区间的上限为2^i毫秒,最后一个区间没有上限
+     */
+    private static final int BUCKETS = 16;
+
+    private static final UploadStatistics GLOBAL = new UploadStatistics();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(GLOBAL, name);
+            }
+        } catch (JMException e) {
+            //无法注册时仍然可以通过snapshot()读取
+        } catch (SecurityException e) {
+            //同上
+        }
+    }
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder failedRequests = new LongAdder();
+
+    private final ConcurrentMap<String, LongAdder> failuresByCause = new ConcurrentHashMap<String, LongAdder>();
+
+    private final LongAdder parts = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder skippedBytes = new LongAdder();
+
+    private final LongAdder headerBytes = new LongAdder();
+
+    private final LongAdder parseNanos = new LongAdder();
+
+    /**
+     * 当前预留量,是一个瞬时值,不会被 {@link #reset()} 清零
+     */
+    private final LongAdder memoryReserved = new LongAdder();
+
+    private final LongAdder[] parseTimeHistogram = new LongAdder[BUCKETS];
+
+    UploadStatistics() {
+        for (int i = 0; i < BUCKETS; i++) {
+            parseTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return 全局统计实例
+     */
+    public static UploadStatistics global() {
+        return GLOBAL;
+    }
+
+    void noteRequest() {
+        requests.increment();
+    }
+
+    /**
+     * @param nanos 解析耗时
+     */
+    void noteParsed(long nanos) {
+        parseNanos.add(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = millis == 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        parseTimeHistogram[Math.min(bucket, BUCKETS - 1)].increment();
+    }
+
+    /**
+     * @param cause 导致解析失败的异常
+     * @param nanos 失败前的解析耗时
+     */
+    void noteFailure(Throwable cause, long nanos) {
+        failedRequests.increment();
+        String key = cause.getClass().getName();
+        LongAdder counter = failuresByCause.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = failuresByCause.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+        noteParsed(nanos);
+    }
+
+    void notePart() {
+        parts.increment();
+    }
+
+    void noteBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void noteSkippedBytes(long bytes) {
+        skippedBytes.add(bytes);
+    }
+
+    void noteHeaderBytes(long bytes) {
+        headerBytes.add(bytes);
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByCause() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : failuresByCause.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().sum()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public long getParts() {
+        return parts.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getSkippedBytes() {
+        return skippedBytes.sum();
+    }
+
+    @Override
+    public long getHeaderBytes() {
+        return headerBytes.sum();
+    }
+
+    /**
+     * @param bytes 预留量的变化,归还时为负数
+     */
+    void noteMemoryReserved(long bytes) {
+        memoryReserved.add(bytes);
+    }
+
+    @Override
+    public long getMemoryReserved() {
+        return memoryReserved.sum();
+    }
+
+    @Override
+    public long[] getParseTimeBucketsMillis() {
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 1L << i;
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    @Override
+    public long[] getParseTimeHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = parseTimeHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getTotalParseTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+    }
+
+    @Override
+    public void reset() {
+        requests.reset();
+        failedRequests.reset();
+        failuresByCause.clear();
+        parts.reset();
+        bytesRead.reset();
+        skippedBytes.reset();
+        headerBytes.reset();
+        parseNanos.reset();
+        for (LongAdder bucket : parseTimeHistogram) {
+            bucket.reset();
+        }
+    }
+
+    /**
+     * @return 当前所有计数的快照,并发写入时各计数之间不保证一致
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * 统计快照
+     */
+    public static final class Snapshot {
+
+        private final long requests;
+
+        private final long failedRequests;
+
+        private final Map<String, Long> failuresByCause;
+
+        private final long parts;
+
+        private final long bytesRead;
+
+        private final long skippedBytes;
+
+        private final long headerBytes;
+
+        private final long totalParseTimeMillis;
+
+        private final long memoryReserved;
+
+        private final long[] parseTimeHistogram;
+
+        private Snapshot(UploadStatistics statistics) {
+            this.requests = statistics.getRequests();
+            this.failedRequests = statistics.getFailedRequests();
+            this.failuresByCause = statistics.getFailuresByCause();
+            this.parts = statistics.getParts();
+            this.bytesRead = statistics.getBytesRead();
+            this.skippedBytes = statistics.getSkippedBytes();
+            this.headerBytes = statistics.getHeaderBytes();
+            this.totalParseTimeMillis = statistics.getTotalParseTimeMillis();
+            this.memoryReserved = statistics.getMemoryReserved();
+            this.parseTimeHistogram = statistics.getParseTimeHistogram();
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailedRequests() {
+            return failedRequests;
+        }
+
+        public Map<String, Long> getFailuresByCause() {
+            return failuresByCause;
+        }
+
+        public long getParts() {
+            return parts;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        public long getHeaderBytes() {
+            return headerBytes;
+        }
+
+        public long getTotalParseTimeMillis() {
+            return totalParseTimeMillis;
+        }
+
+        public long getMemoryReserved() {
+            return memoryReserved;
+        }
+
+        /**
+         * @see UploadStatisticsMXBean#getParseTimeHistogram()
+         */
+        public long[] getParseTimeHistogram() {
+            return parseTimeHistogram.clone();
+        }
+    }
+}
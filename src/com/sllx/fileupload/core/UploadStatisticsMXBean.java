@@ -0,0 +1,69 @@
+package com.sllx.fileupload.core;
+
+import java.util.Map;
+
+/**
+ * 通过JMX暴露的全局解析统计,对象名为 <code>com.sllx.fileupload:type=UploadStatistics</code>
+ */
+public interface UploadStatisticsMXBean {
+
+    /**
+     * @return 开始解析的请求数
+     */
+    long getRequests();
+
+    /**
+     * @return 解析失败的请求数
+     */
+    long getFailedRequests();
+
+    /**
+     * @return 按异常类型统计的失败次数
+     */
+    Map<String, Long> getFailuresByCause();
+
+    /**
+     * @return 解析出的条目数
+     */
+    long getParts();
+
+    /**
+     * @return 从输入流读取的字节数
+     */
+    long getBytesRead();
+
+    /**
+     * @return 因不需要而跳过的body字节数
+     */
+    long getSkippedBytes();
+
+    /**
+     * @return 读取的 <code>header-part</code> 字节数
+     */
+    long getHeaderBytes();
+
+    /**
+     * @return 所有 {@link MemoryBudget} 当前为内存中的条目预留的字节数
+     */
+    long getMemoryReserved();
+
+    /**
+     * @return 解析耗时直方图各区间的上限(毫秒),最后一个区间没有上限
+     */
+    long[] getParseTimeBucketsMillis();
+
+    /**
+     * @return 解析耗时落在各区间中的请求数,与 {@link #getParseTimeBucketsMillis()} 一一对应
+     */
+    long[] getParseTimeHistogram();
+
+    /**
+     * @return 所有请求的解析耗时之和(毫秒)
+     */
+    long getTotalParseTimeMillis();
+
+    /**
+     * 将所有计数清零
+     */
+    void reset();
+}
@@ -0,0 +1,424 @@
+package com.sllx.fileupload.core;
+
+import com.sllx.fileupload.util.Charsets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p><code>application/x-www-form-urlencoded</code> 请求体的流式解析器
+ *
+ * <p>请求体按块读入解析缓冲,字段名与值直接在缓冲上扫描并完成百分号解码,写入一个复用的数组,
+ * 不经过中间字符串,也不需要先读入整个请求体.读取与 {@link MultipartStream} 一样经过
+ * {@link MultipartStream.ProgressNotifier},读取限制、取消与带宽限制同样生效.
+ *
+ * <p>不完整或非法的转义序列按原样保留,不会导致解析失败
+ */
+class UrlEncodedParser {
+
+    /**
+     * 当前token尚未结束
+     */
+    private static final int OPEN = 0;
+
+    /**
+     * 当前token因请求体结束而结束
+     */
+    private static final int END = -1;
+
+    private InputStream input;
+
+    private final MultipartStream.ProgressNotifier notifier = new MultipartStream.ProgressNotifier();
+
+    private byte[] buffer;
+
+    /**
+     * 本次请求的解析缓冲大小,即字段名长度的上限,复用的缓冲可能更大
+     */
+    private int bufSize;
+
+    /**
+     * 缓冲中下一个未处理的字节
+     */
+    private int head;
+
+    /**
+     * 缓冲中有效数据的末尾
+     */
+    private int tail;
+
+    /**
+     * 输入流已读完
+     */
+    private boolean eof;
+
+    /**
+     * 解码字段名与小型值所用的数组,在多个字段之间复用
+     */
+    private byte[] decoded;
+
+    /**
+     * 最近一个token的结束字符: <code>'='</code>, <code>'&amp;'</code>, {@link #END} 或 {@link #OPEN}
+     */
+    private int terminator;
+
+    /**
+     * 当前字段的值是否尚未读取
+     */
+    private boolean valuePending;
+
+    /**
+     * {@link #readValue(int)} 返回null时已解码但未返回的字节数
+     */
+    private int pendingPrefix;
+
+    /**
+     * @param input   请求体
+     * @param bufSize 解析缓冲大小,同时也是字段名长度的上限
+     */
+    UrlEncodedParser(InputStream input, int bufSize) {
+        reset(input, bufSize, bufSize);
+    }
+
+    /**
+     * 丢弃所有状态,复用同一个实例解析另一个请求.现有的缓冲大小在 [bufSize, maxBufSize] 之内时继续使用,
+     * 字段名长度的上限仍为 <code>bufSize</code>
+     */
+    void reset(InputStream input, int bufSize, int maxBufSize) {
+        this.input = input;
+        this.bufSize = bufSize;
+        if (buffer == null || buffer.length < bufSize || buffer.length > Math.max(bufSize, maxBufSize)) {
+            buffer = new byte[bufSize];
+        }
+        if (decoded == null || decoded.length > buffer.length) {
+            decoded = new byte[Math.min(bufSize, MultipartStream.DEFAULT_BUFSIZE)];
+        }
+        head = 0;
+        tail = 0;
+        eof = false;
+        terminator = OPEN;
+        valuePending = false;
+        pendingPrefix = 0;
+        notifier.reset();
+    }
+
+    /**
+     * 解析结束后放弃对请求的引用,超过 <code>retainBufSize</code> 的缓冲也被放弃,下次{@link #reset}时重新分配
+     *
+     * @param retainBufSize 缓存期间保留的最大缓冲大小
+     */
+    void release(int retainBufSize) {
+        input = null;
+        if (buffer != null && buffer.length > retainBufSize) {
+            buffer = null;
+            decoded = null;
+        }
+        notifier.reset();
+    }
+
+    MultipartStream.ProgressNotifier notifier() {
+        return notifier;
+    }
+
+    /**
+     * 读取下一个字段名,之前字段的值若未读取将被跳过.空的 <code>&amp;&amp;</code> 被忽略
+     *
+     * @return 字段名,没有更多字段时返回null
+     * @throws UploadException 字段名超过解析缓冲大小
+     * @throws IOException
+     */
+    String nextName(Charset charset) throws IOException {
+        if (valuePending) {
+            skipValue();
+        }
+        pendingPrefix = 0;
+        for (;;) {
+            if (terminator == END || (head == tail && !fill(1))) {
+                return null;
+            }
+            if (buffer[head] != '&') {
+                break;
+            }
+            head++;
+        }
+        terminator = OPEN;
+        int n = 0;
+        for (;;) {
+            n += decode(decoded, n, Math.min(decoded.length, bufSize) - n, true);
+            if (terminator != OPEN) {
+                break;
+            }
+            if (decoded.length >= bufSize) {
+                throw new UploadException(String.format("Field name exceeds %s bytes",
+                        Integer.valueOf(bufSize)));
+            }
+            decoded = copyOf(decoded, Math.min(decoded.length * 2, bufSize), n);
+        }
+        //没有'='的字段值为空
+        valuePending = terminator == '=';
+        if (valuePending) {
+            terminator = OPEN;
+        }
+        notifier.noteItem();
+        return Charsets.decode(decoded, 0, n, charset);
+    }
+
+    /**
+     * 读取当前字段百分号解码后的值,不超过 <code>limit</code> 个字节时返回其副本
+     *
+     * @param limit 字节数
+     * @return 值,超过 <code>limit</code> 时返回null,此时应通过 {@link #openValue()} 读取
+     * @throws IOException
+     */
+    byte[] readValue(int limit) throws IOException {
+        if (!valuePending) {
+            return new byte[0];
+        }
+        if (decoded.length < limit) {
+            decoded = copyOf(decoded, Math.min(limit, buffer.length), 0);
+        }
+        int n = decode(decoded, 0, Math.min(limit, decoded.length), false);
+        if (terminator == OPEN) {
+            //值过长,已解码的部分由openValue()继续返回
+            pendingPrefix = n;
+            return null;
+        }
+        valuePending = false;
+        return copyOf(decoded, n, n);
+    }
+
+    /**
+     * 以流的方式读取当前字段解码后的值,包括 {@link #readValue(int)} 已经解码但未返回的部分.
+     * 该流在读取下一个字段名之前有效
+     *
+     * @return 值的输入流
+     */
+    InputStream openValue() {
+        int prefix = pendingPrefix;
+        pendingPrefix = 0;
+        return new ValueInputStream(prefix);
+    }
+
+    /**
+     * 放弃剩余的请求体
+     *
+     * @return 丢弃的字节数
+     */
+    long abandon(RemainderPolicy policy) throws IOException {
+        long drained = 0;
+        try {
+            if (policy == RemainderPolicy.DRAIN) {
+                drained = tail - head;
+                head = 0;
+                tail = 0;
+                for (;;) {
+                    int bytesRead = readInput(buffer, 0, buffer.length);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    drained += bytesRead;
+                }
+            }
+        } finally {
+            terminator = END;
+            valuePending = false;
+            eof = true;
+            input.close();
+        }
+        notifier.noteSkippedBytes(drained);
+        return drained;
+    }
+
+    /**
+     * 不解码地跳过当前字段的值,只查找下一个 <code>'&amp;'</code>
+     */
+    private void skipValue() throws IOException {
+        long skipped = 0;
+        while (terminator == OPEN) {
+            if (head == tail && !fill(1)) {
+                terminator = END;
+                break;
+            }
+            int end = head;
+            while (end < tail && buffer[end] != '&') {
+                end++;
+            }
+            skipped += end - head;
+            if (end < tail) {
+                terminator = '&';
+                end++;
+            }
+            head = end;
+        }
+        valuePending = false;
+        notifier.noteSkippedBytes(skipped);
+    }
+
+    /**
+     * 从缓冲中解码当前token,写入 <code>out[off, off + len)</code>,遇到结束字符时将其记录在
+     * {@link #terminator} 中并消费掉
+     *
+     * @param name 是否为字段名,字段名还会在 <code>'='</code> 处结束
+     * @return 写入的字节数
+     */
+    private int decode(byte[] out, int off, int len, boolean name) throws IOException {
+        int pos = off;
+        int end = off + len;
+        byte[] buf = buffer;
+        while (pos < end && terminator == OPEN) {
+            if (head == tail && !fill(1)) {
+                terminator = END;
+                break;
+            }
+            int h = head;
+            int t = tail;
+            //在缓冲中连续解码,只有转义序列跨越缓冲末尾时才需要重新填充
+            while (h < t && pos < end) {
+                byte b = buf[h];
+                if (b == '&' || (name && b == '=')) {
+                    terminator = b;
+                    h++;
+                    break;
+                }
+                if (b == '+') {
+                    out[pos++] = ' ';
+                    h++;
+                } else if (b == '%') {
+                    if (t - h < 3) {
+                        break;
+                    }
+                    int hi = hex(buf[h + 1]);
+                    int lo = hex(buf[h + 2]);
+                    if (hi < 0 || lo < 0) {
+                        out[pos++] = b;
+                        h++;
+                    } else {
+                        out[pos++] = (byte) (hi << 4 | lo);
+                        h += 3;
+                    }
+                } else {
+                    out[pos++] = b;
+                    h++;
+                }
+            }
+            head = h;
+            if (terminator == OPEN && pos < end && h < t && buf[h] == '%' && !fill(3)) {
+                //请求体末尾不完整的转义序列按原样保留
+                out[pos++] = '%';
+                head++;
+            }
+        }
+        return pos - off;
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * 将未处理的数据移到缓冲开头,读取直至缓冲中至少有 <code>n</code> 个字节
+     *
+     * @return 是否有 <code>n</code> 个字节,读到末尾时可能不足
+     */
+    private boolean fill(int n) throws IOException {
+        if (tail - head >= n) {
+            return true;
+        }
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        while (tail < n && !eof) {
+            int bytesRead = readInput(buffer, tail, buffer.length - tail);
+            if (bytesRead == -1) {
+                eof = true;
+            } else {
+                tail += bytesRead;
+            }
+        }
+        return tail >= n;
+    }
+
+    /**
+     * 与 {@link MultipartStream} 相同的读取方式,经过检查点、带宽限制与读取限制
+     */
+    private int readInput(byte[] b, int off, int len) throws IOException {
+        notifier.checkpoint();
+        int allowed = notifier.limitRead(len);
+        int bytesRead;
+        try {
+            bytesRead = input.read(b, off, allowed);
+        } catch (IOException e) {
+            notifier.checkAborted(e);
+            throw e;
+        }
+        if (bytesRead > 0) {
+            notifier.noteBytesRead(bytesRead);
+        } else if (bytesRead == -1) {
+            notifier.checkAborted(null);
+        }
+        return bytesRead;
+    }
+
+    private static byte[] copyOf(byte[] src, int size, int length) {
+        byte[] copy = new byte[size];
+        System.arraycopy(src, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * 当前字段解码后的值,读到 <code>'&amp;'</code> 或请求体末尾时结束
+     */
+    private class ValueInputStream extends InputStream {
+
+        /**
+         * 尚未返回的已解码部分在 {@link #decoded} 中的位置与末尾
+         */
+        private int prefixPos;
+
+        private final int prefixEnd;
+
+        ValueInputStream(int prefixEnd) {
+            this.prefixEnd = prefixEnd;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (prefixPos < prefixEnd) {
+                int n = Math.min(len, prefixEnd - prefixPos);
+                System.arraycopy(decoded, prefixPos, b, off, n);
+                prefixPos += n;
+                return n;
+            }
+            if (!valuePending) {
+                return -1;
+            }
+            int n = decode(b, off, len, false);
+            if (terminator != OPEN) {
+                valuePending = false;
+            }
+            //len大于0时只有遇到结束字符才会一个字节都不解码
+            return n == 0 ? -1 : n;
+        }
+    }
+}
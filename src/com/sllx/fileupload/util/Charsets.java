@@ -0,0 +1,113 @@
+package com.sllx.fileupload.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+
+public final class Charsets {
+
+    /**
+     * 每个线程缓存的字符缓冲大小,超过该大小的解码结果使用临时缓冲
+     */
+    private static final int CACHED_CHARS = 8192;
+
+    /**
+     * 每个线程复用的解码器
+     */
+    private static final ThreadLocal<Decoder> DECODERS = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder();
+        }
+    };
+
+    private Charsets() {
+    }
+
+    /**
+     * 根据名称查找编码,每个请求只需查找一次
+     *
+     * @param name 编码名称
+     * @return 对应的编码,若平台不知道指定的编码或名称为null,将使用默认值
+     */
+    public static Charset forName(String name) {
+        if (name == null) {
+            return Charset.defaultCharset();
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException e) {
+            return Charset.defaultCharset();
+        } catch (UnsupportedCharsetException e) {
+            return Charset.defaultCharset();
+        }
+    }
+
+    /**
+     * 使用当前线程复用的解码器解码,无法解码的字节将被替换,与 {@link String#String(byte[], Charset)} 的行为一致
+     *
+     * @param bytes   数据
+     * @param offset  起始位置
+     * @param length  长度
+     * @param charset 编码
+     * @return 解码后的字符串
+     */
+    public static String decode(byte[] bytes, int offset, int length, Charset charset) {
+        if (length == 0) {
+            return "";
+        }
+        return DECODERS.get().decode(ByteBuffer.wrap(bytes, offset, length), charset);
+    }
+
+    /**
+     * @see #decode(byte[], int, int, Charset)
+     */
+    public static String decode(ByteBuffer bytes, Charset charset) {
+        if (!bytes.hasRemaining()) {
+            return "";
+        }
+        return DECODERS.get().decode(bytes.duplicate(), charset);
+    }
+
+    private static final class Decoder {
+
+        private CharsetDecoder decoder;
+
+        private CharBuffer chars;
+
+        String decode(ByteBuffer in, Charset charset) {
+            if (decoder == null || !decoder.charset().equals(charset)) {
+                decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            int maxChars = (int) Math.ceil(in.remaining() * (double) decoder.maxCharsPerByte());
+            CharBuffer out;
+            if (maxChars <= CACHED_CHARS) {
+                if (chars == null) {
+                    chars = CharBuffer.allocate(CACHED_CHARS);
+                }
+                out = chars;
+                out.clear();
+            } else {
+                out = CharBuffer.allocate(maxChars);
+            }
+            decoder.reset();
+            try {
+                CoderResult result = decoder.decode(in, out, true);
+                if (!result.isUnderflow()) {
+                    result.throwException();
+                }
+                result = decoder.flush(out);
+                if (!result.isUnderflow()) {
+                    result.throwException();
+                }
+            } catch (CharacterCodingException e) {
+                //使用REPLACE时不会发生
+                throw new IllegalStateException(e);
+            }
+            out.flip();
+            return out.toString();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.sllx.fileupload.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public final class Streams {
 
@@ -55,4 +57,114 @@ public final class Streams {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 以定位读取的方式打开文件中的一段区域,不改变 <code>channel</code> 的position,
+     * 因此多个线程可以同时读取同一个 <code>channel</code> 的不同区域
+     *
+     * @param channel  文件
+     * @param position 区域起始位置
+     * @param length   区域长度
+     * @return 只能读取该区域的输入流,关闭时不会关闭 <code>channel</code>
+     */
+    public static InputStream newInputStream(FileChannel channel, long position, long length) {
+        return new ChannelSliceInputStream(channel, position, length);
+    }
+
+    /**
+     * 以输入流的形式读取 <code>buffer</code> 的剩余内容,不改变 <code>buffer</code> 的position
+     *
+     * @param buffer 数据
+     * @return 与 <code>buffer</code> 共享数据的输入流
+     */
+    public static InputStream newInputStream(ByteBuffer buffer) {
+        return new BufferInputStream(buffer.duplicate());
+    }
+
+    private static final class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static final class ChannelSliceInputStream extends InputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        private final long end;
+
+        ChannelSliceInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.sllx.fileupload.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static com.sllx.fileupload.core.CheckSupport.*;
+
+/**
+ * <p>复用解析器的回归检查: 预热后解析小表单时,每个请求分配的内存只包括返回给调用方的结果,
+ * 不包括解析缓冲、分界线数组等解析器本身的对象.整体读入时请求体数组被条目的切片引用,属于结果,
+ * 它的长度应当只取决于请求长度
+ *
+ * <p>分别以两种解析缓冲大小解析同一个请求,若缓冲被复用,两者每个请求的分配量应当相同,
+ * 且都远小于缓冲本身.以 <code>java com.sllx.fileupload.core.AllocationCheck</code> 运行
+ */
+public class AllocationCheck {
+
+    private static final int SMALL_BUFFER = 8 << 10;
+
+    private static final int LARGE_BUFFER = 64 << 10;
+
+    private static final int WARMUP_REQUESTS = 20000;
+
+    private static final int MEASURED_REQUESTS = 10000;
+
+    /**
+     * 两种缓冲大小下每个请求分配量允许的差值
+     */
+    private static final long BUFFER_DEPENDENT_LIMIT = 512;
+
+    public static void main(String[] args) throws Exception {
+        byte[] body = form("a", "1", "b", "hello", "c", "world");
+        for (int wholeBodyThreshold : new int[]{0, 1 << 20}) {
+            long small = bytesPerRequest(body, SMALL_BUFFER, wholeBodyThreshold);
+            long large = bytesPerRequest(body, LARGE_BUFFER, wholeBodyThreshold);
+            System.out.println(String.format("wholeBodyThreshold=%-8d bytes/request buffer %dKB=%d buffer %dKB=%d",
+                    Integer.valueOf(wholeBodyThreshold), Integer.valueOf(SMALL_BUFFER >> 10), Long.valueOf(small),
+                    Integer.valueOf(LARGE_BUFFER >> 10), Long.valueOf(large)));
+            if (Math.abs(large - small) > BUFFER_DEPENDENT_LIMIT || large > SMALL_BUFFER) {
+                throw new AssertionError("the parser is not reused: " + small + " vs " + large + " bytes per request");
+            }
+        }
+        System.out.println("allocation check passed");
+    }
+
+    /**
+     * @return 预热后每个请求平均分配的字节数
+     */
+    private static long bytesPerRequest(byte[] body, int bufferSize, int wholeBodyThreshold) throws IOException {
+        Upload upload = new Upload();
+        upload.setBufferSize(bufferSize);
+        upload.setWholeBodyThreshold(wholeBodyThreshold);
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            parse(upload, body);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_REQUESTS; i++) {
+            parse(upload, body);
+        }
+        return (allocatedBytes() - before) / MEASURED_REQUESTS;
+    }
+
+    private static void parse(Upload upload, byte[] body) throws IOException {
+        List<Part> parts = upload.parseRequest(request(body, body.length), null);
+        if (parts.size() != 3) {
+            throw new AssertionError("expected 3 parts, got " + parts.size());
+        }
+    }
+
+    /**
+     * @param fields 依次为字段名与值
+     */
+    private static byte[] form(String... fields) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < fields.length; i += 2) {
+            out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + fields[i] + "\"\r\n\r\n"
+                    + fields[i + 1] + "\r\n").getBytes(ISO_8859_1));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(ISO_8859_1));
+        return out.toByteArray();
+    }
+}
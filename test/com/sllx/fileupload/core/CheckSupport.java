@@ -0,0 +1,184 @@
+package com.sllx.fileupload.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+/**
+ * 回归检查共用的请求构造与计时工具
+ */
+final class CheckSupport {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    static final String CONTENT_TYPE = "multipart/form-data; boundary=" + BOUNDARY;
+
+    /**
+     * 数据量增加到4倍时允许的耗时倍数,线性约为4,平方级约为16
+     */
+    static final double LINEAR_LIMIT = 8;
+
+    private static final int WARMUP_RUNS = 3;
+
+    private static final int MEASURED_RUNS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private CheckSupport() {
+    }
+
+    /**
+     * 构造一个表单域 <code>a=1</code> 与一个文件条目 <code>f</code> 组成的请求体
+     *
+     * @param payload     文件条目的body
+     * @param extraHeader 追加在文件条目<code>Content-Disposition</code>之后的内容
+     */
+    static byte[] body(byte[] payload, String extraHeader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + extraHeader.length() + 256);
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n")
+                .getBytes(ISO_8859_1));
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"f\"; filename=\"x.bin\""
+                + extraHeader + "\r\n\r\n").getBytes(ISO_8859_1));
+        out.write(payload);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    /**
+     * @return 重复 <code>unit</code> 填满的n个字节
+     */
+    static byte[] fill(int n, byte[] unit) {
+        byte[] bytes = new byte[n];
+        for (int i = 0; i < n; i++) {
+            bytes[i] = unit[i % unit.length];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 重复n次 <code>unit</code> 的字符串
+     */
+    static String repeat(String unit, int n) {
+        StringBuilder sb = new StringBuilder(unit.length() * n);
+        for (int i = 0; i < n; i++) {
+            sb.append(unit);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param chunk 每次读取最多返回的字节数,为1时模拟逐字节到达的请求
+     */
+    static RequestContext request(byte[] body, int chunk) {
+        return RequestContext.of(new ChunkedInputStream(body, chunk), CONTENT_TYPE, "ISO-8859-1", body.length);
+    }
+
+    /**
+     * 以流的方式读完请求,检查条目数与文件条目的长度
+     */
+    static void drain(Upload upload, byte[] body, int chunk, long expectedFileSize) throws IOException {
+        ItemIterator iter = upload.getItemIterator(request(body, chunk));
+        CountingOutputStream sink = new CountingOutputStream();
+        int items = 0;
+        while (iter.hasNext()) {
+            Item item = iter.next();
+            sink.count = 0;
+            ((MultipartStream.ItemInputStream) item.openStream()).transferTo(sink);
+            items++;
+            if ("f".equals(item.getFieldName()) && sink.count != expectedFileSize) {
+                throw new AssertionError("file item has " + sink.count + " bytes, expected " + expectedFileSize);
+            }
+        }
+        if (items != 2) {
+            throw new AssertionError("expected 2 items, got " + items);
+        }
+    }
+
+    /**
+     * 预热后分别计时,检查耗时是否随数据量线性增长
+     *
+     * @param name  用例名
+     * @param small 数据量为n的任务
+     * @param large 数据量为4n的任务
+     */
+    static void assertLinear(String name, Task small, Task large) throws Exception {
+        bestOf(WARMUP_RUNS, small);
+        bestOf(WARMUP_RUNS, large);
+        assertLinear(name, bestOf(MEASURED_RUNS, small), bestOf(MEASURED_RUNS, large));
+    }
+
+    private static void assertLinear(String name, long small, long large) {
+        double ratio = (double) large / Math.max(small, 1);
+        System.out.println(String.format("%-28s n=%8.2fms 4n=%8.2fms ratio=%5.2f",
+                name, small / 1e6, large / 1e6, Double.valueOf(ratio)));
+        if (ratio > LINEAR_LIMIT) {
+            throw new AssertionError(name + ": time grew " + ratio + "x for 4x input");
+        }
+    }
+
+    /**
+     * 多次运行取最短耗时,减少GC与调度的干扰
+     */
+    private static long bestOf(int runs, Task task) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * @return 当前线程累计分配的字节数
+     */
+    static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * 每次读取最多返回chunk个字节的输入流
+     */
+    static final class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int chunk;
+
+        ChunkedInputStream(byte[] buf, int chunk) {
+            super(buf);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    /**
+     * 只计数不保存的输出流
+     */
+    static final class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.sllx.fileupload.core;
+
+import java.io.IOException;
+
+import static com.sllx.fileupload.core.CheckSupport.*;
+
+/**
+ * <p>构造的恶意请求体的回归检查: 数据量增加到4倍时耗时不超过 {@link CheckSupport#LINEAR_LIMIT} 倍,
+ * 流式解析body时分配的内存不随body增长
+ *
+ * <p>不依赖测试框架,以 <code>java com.sllx.fileupload.core.WorstCaseCheck</code> 运行,
+ * 检查失败时抛出 {@link AssertionError} 并以非0状态退出
+ */
+public class WorstCaseCheck {
+
+    /**
+     * body用例的数据量
+     */
+    private static final int BODY_SIZE = 2 << 20;
+
+    /**
+     * 逐字节到达的用例的数据量
+     */
+    private static final int BYTE_AT_A_TIME_SIZE = 128 << 10;
+
+    /**
+     * 流式解析时每个body字节允许分配的字节数
+     */
+    private static final double ALLOCATION_PER_BYTE_LIMIT = 0.01;
+
+    /**
+     * header用例单次解析太快,重复多次后计时
+     */
+    private static final int HEADER_REPEAT = 300;
+
+    public static void main(String[] args) throws Exception {
+        byte[] nearMiss = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X").getBytes(ISO_8859_1);
+        checkBody("CR flood", new byte[]{'\r'}, 1 << 16);
+        checkBody("CRLF flood", new byte[]{'\r', '\n'}, 1 << 16);
+        checkBody("near-miss boundaries", nearMiss, 1 << 16);
+        checkByteAtATime("byte-at-a-time near-miss", nearMiss);
+        //header总长不超过10KB的限制
+        checkHeader("lone CRs in header", "\r\nX-CR: ", "\r ", 1000);
+        checkHeader("deep header folding", "\r\nX-Fold: a", "\r\n\tb", 500);
+        checkHeader("large parameter list", "", "; p=v", 400);
+        checkContentTypeWithoutBoundary();
+        System.out.println("all worst-case checks passed");
+    }
+
+    /**
+     * body由重复的 <code>unit</code> 组成,检查分界线查找的耗时与分配
+     */
+    private static void checkBody(String name, byte[] unit, int chunk) throws Exception {
+        Upload upload = new Upload();
+        byte[] small = body(fill(BODY_SIZE, unit), "");
+        byte[] large = body(fill(BODY_SIZE * 4, unit), "");
+        assertLinear(name, drainTask(upload, small, chunk, BODY_SIZE), drainTask(upload, large, chunk, BODY_SIZE * 4));
+        long smallAllocated = allocated(upload, small, chunk, BODY_SIZE);
+        long largeAllocated = allocated(upload, large, chunk, BODY_SIZE * 4);
+        double perByte = (double) (largeAllocated - smallAllocated) / (BODY_SIZE * 3);
+        System.out.println(String.format("%-28s allocated n=%d 4n=%d per extra byte=%.4f",
+                name, Long.valueOf(smallAllocated), Long.valueOf(largeAllocated), Double.valueOf(perByte)));
+        if (perByte > ALLOCATION_PER_BYTE_LIMIT) {
+            throw new AssertionError(name + ": allocated " + perByte + " bytes per body byte");
+        }
+    }
+
+    /**
+     * 请求每次只送达一个字节,分界线查找需要在多次读取之间接续
+     */
+    private static void checkByteAtATime(String name, byte[] unit) throws Exception {
+        Upload upload = new Upload();
+        byte[] small = body(fill(BYTE_AT_A_TIME_SIZE, unit), "");
+        byte[] large = body(fill(BYTE_AT_A_TIME_SIZE * 4, unit), "");
+        assertLinear(name, drainTask(upload, small, 1, BYTE_AT_A_TIME_SIZE),
+                drainTask(upload, large, 1, BYTE_AT_A_TIME_SIZE * 4));
+    }
+
+    /**
+     * 文件条目的header由 <code>prefix</code> 与重复的 <code>unit</code> 组成,分别逐字节与整块送达
+     */
+    private static void checkHeader(String name, String prefix, String unit, int count) throws Exception {
+        Upload upload = new Upload();
+        byte[] small = body(new byte[16], prefix + repeat(unit, count));
+        byte[] large = body(new byte[16], prefix + repeat(unit, count * 4));
+        for (int chunk : new int[]{1, 1 << 16}) {
+            assertLinear(name + (chunk == 1 ? " (bytes)" : ""),
+                    repeatTask(upload, small, chunk, HEADER_REPEAT), repeatTask(upload, large, chunk, HEADER_REPEAT));
+        }
+    }
+
+    /**
+     * 很长但不含boundary参数的Content-Type
+     */
+    private static void checkContentTypeWithoutBoundary() throws Exception {
+        String small = "multipart/form-data" + repeat("; boundar", 50000);
+        String large = "multipart/form-data" + repeat("; boundar", 200000);
+        assertLinear("content type without boundary", boundaryTask(small), boundaryTask(large));
+    }
+
+    private static long allocated(Upload upload, byte[] body, int chunk, long fileSize) throws IOException {
+        long before = allocatedBytes();
+        drain(upload, body, chunk, fileSize);
+        return allocatedBytes() - before;
+    }
+
+    private static Task drainTask(final Upload upload, final byte[] body, final int chunk, final long fileSize) {
+        return new Task() {
+            @Override
+            public void run() throws Exception {
+                drain(upload, body, chunk, fileSize);
+            }
+        };
+    }
+
+    private static Task repeatTask(final Upload upload, final byte[] body, final int chunk, final int times) {
+        return new Task() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < times; i++) {
+                    drain(upload, body, chunk, 16);
+                }
+            }
+        };
+    }
+
+    private static Task boundaryTask(final String contentType) {
+        return new Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    try {
+                        ItemIterator.getBoundary(contentType);
+                        throw new AssertionError("found a boundary in " + contentType.substring(0, 40));
+                    } catch (RuntimeException expected) {
+                        //没有boundary参数
+                    }
+                }
+            }
+        };
+    }
+}